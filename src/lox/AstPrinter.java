@@ -26,6 +26,11 @@ class AstPrinter implements Expr.Visitor<String>, Expr.VisitorRPN<String>{
     return null;
   }
 
+  @Override
+  public String visitGetExpr(Expr.Get expr) {
+    return null;
+  }
+
   @Override
   public String visitGroupingExpr(Expr.Grouping expr) {
     return parenthesize("group", expr.expression);
@@ -42,6 +47,11 @@ class AstPrinter implements Expr.Visitor<String>, Expr.VisitorRPN<String>{
     return null;
   }
 
+  @Override
+  public String visitSetExpr(Expr.Set expr) {
+    return null;
+  }
+
   @Override
   public String visitUnaryExpr(Expr.Unary expr) {
     return parenthesize(expr.operator.lexeme, expr.right);
@@ -110,6 +120,11 @@ class AstPrinter implements Expr.Visitor<String>, Expr.VisitorRPN<String>{
     return null;
   }
 
+  @Override
+  public String visitGetExprRPN(Expr.Get expr) {
+    return null;
+  }
+
   @Override
   public String visitGroupingExprRPN(Expr.Grouping expr) {
     return parenthesizeRPN("group", expr.expression);
@@ -126,6 +141,11 @@ class AstPrinter implements Expr.Visitor<String>, Expr.VisitorRPN<String>{
     return null;
   }
 
+  @Override
+  public String visitSetExprRPN(Expr.Set expr) {
+    return null;
+  }
+
   @Override
   public String visitUnaryExprRPN(Expr.Unary expr) {
     return parenthesizeRPN(expr.operator.lexeme, expr.right);
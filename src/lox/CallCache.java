@@ -0,0 +1,81 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Inline cache for one call site: the last callees called there, up to ENTRIES of them,
+// each already checked to be callable with the site's argument count, so a call to one
+// of them goes straight to its entry point. A site that sees more callees than that is
+// megamorphic, and every call there goes through Interpreter.callable again.
+//
+// Entries are callees' callSiteKeys, not the callees. A method bound to a new receiver
+// for every call, or a closure made fresh each time, is then still one callee to the
+// site, and the cache keeps no receiver or captured cells alive. The argument count is
+// fixed per site, so the key and the site together stand for the arity check.
+final class CallCache {
+  private static final int ENTRIES = 4;
+
+  // every cache that has run while --call-stats is on, for report()
+  private static List<CallCache> sites = null;
+
+  private final Object[] keys = new Object[ENTRIES];
+  private int size = 0;
+  private boolean megamorphic = false;
+  // calls that found their callee in the cache, and calls that had to check it
+  private long hits = 0;
+  private long misses = 0;
+  // the site's line, for report()
+  private int line;
+
+  // callee, checked that it can take argCount arguments
+  LoxCallable lookup(Object callee, Token paren, int argCount){
+    if (callee instanceof LoxCallable){
+      LoxCallable function = (LoxCallable) callee;
+      Object key = function.callSiteKey();
+      for (int i = 0; i < size; i++){
+        if (keys[i] == key){
+          hits++;
+          return function;
+        }
+      }
+    }
+    return miss(callee, paren, argCount);
+  }
+
+  // kept out of lookup so the hit path stays small enough to inline at every call site
+  private LoxCallable miss(Object callee, Token paren, int argCount){
+    if (misses++ == 0 && sites != null){
+      line = paren.line;
+      sites.add(this);
+    }
+    LoxCallable function = Interpreter.callable(callee, paren, argCount);
+    if (megamorphic) return function;
+    if (size == ENTRIES){
+      // nothing is cached any more, so lookup goes straight here
+      megamorphic = true;
+      size = 0;
+      Arrays.fill(keys, null);
+    } else {
+      keys[size++] = function.callSiteKey();
+    }
+    return function;
+  }
+
+  static void collectStats(){
+    sites = new ArrayList<>();
+  }
+
+  // prints how each call site that ran did, in source order, when --call-stats is on
+  static void report(){
+    if (sites == null) return;
+    sites.sort(Comparator.comparingInt(site -> site.line));
+    for (CallCache site : sites){
+      String state = site.megamorphic ? "megamorphic"
+        : site.size <= 1 ? "monomorphic" : "polymorphic, " + site.size + " callees";
+      System.err.println("[line " + site.line + "] " + site.hits + " hits, " + site.misses
+        + " misses, " + state);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled function body: the bytecode, its constant pool, and the token each
+// instruction came from so runtime errors report the same line as the Interpreter.
+class Chunk {
+  byte[] code = new byte[64];
+  Token[] tokens = new Token[64];
+  int count = 0;
+  Object[] constants = new Object[16];
+  int constantCount = 0;
+  // the global cell for a name constant, filled in by the VM the first time it is used
+  Environment.Global[] globals = new Environment.Global[16];
+  // the inline cache of each property get, set and method call, indexed by its operand
+  PropertyCache[] caches = new PropertyCache[4];
+  int cacheCount = 0;
+  // deepest the operand stack gets in this function, including its locals
+  int maxStack = 0;
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+  void write(byte b, Token token){
+    if (count == code.length){
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+    code[count] = b;
+    tokens[count] = token;
+    count++;
+  }
+
+  int addCache(){
+    if (cacheCount == caches.length){
+      caches = Arrays.copyOf(caches, cacheCount * 2);
+    }
+    caches[cacheCount] = new PropertyCache();
+    return cacheCount++;
+  }
+
+  int addConstant(Object value){
+    Integer existing = constantIndex.get(value);
+    if (existing != null) return existing;
+
+    if (constantCount == constants.length){
+      constants = Arrays.copyOf(constants, constantCount * 2);
+      globals = Arrays.copyOf(globals, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    constantIndex.put(value, constantCount);
+    return constantCount++;
+  }
+}
@@ -0,0 +1,20 @@
+package lox;
+
+// The VM's view of a function declaration: its bytecode plus what a closure over it needs.
+class CompiledFunction {
+  final String name;
+  final int arity;
+  final Chunk chunk = new Chunk();
+  int upvalueCount = 0;
+
+  CompiledFunction(String name, int arity){
+    this.name = name;
+    this.arity = arity;
+  }
+
+  @Override
+  public String toString(){
+    if (name == null) return "<script>";
+    return "<fn " + name + ">";
+  }
+}
@@ -0,0 +1,617 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lowers a resolved syntax tree to bytecode for the VM. Locals live in stack slots of
+// their function's frame; anything a nested function closes over becomes an upvalue.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int MAX_LOCALS = 256;
+  private static final int MAX_UPVALUES = 256;
+  private static final int MAX_U16 = 0xffff;
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean captured = false;
+
+    Local(String name, int depth){
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class UpvalueRef {
+    final boolean isLocal;
+    final int index;
+
+    UpvalueRef(boolean isLocal, int index){
+      this.isLocal = isLocal;
+      this.index = index;
+    }
+  }
+
+  // the loop a break or continue belongs to, with the jumps still waiting for their targets
+  private static class Loop {
+    final Loop enclosing;
+    // locals declared deeper than this are popped before jumping out of the body
+    final int scopeDepth;
+    final List<Integer> breakJumps = new ArrayList<>();
+    final List<Integer> continueJumps = new ArrayList<>();
+
+    Loop(Loop enclosing, int scopeDepth){
+      this.enclosing = enclosing;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final CompiledFunction function;
+    final List<Local> locals = new ArrayList<>();
+    final List<UpvalueRef> upvalues = new ArrayList<>();
+    // operand stack height at each pending jump, restored when the jump lands
+    final Map<Integer, Integer> jumpDepths = new HashMap<>();
+    int scopeDepth = 0;
+    int stackDepth;
+    Loop loop;
+    // an init method, whose returns all give back `this`
+    boolean initializer = false;
+
+    FunctionState(FunctionState enclosing, CompiledFunction function, boolean method){
+      this.enclosing = enclosing;
+      this.function = function;
+      // slot zero holds the closure being called, or a method's receiver, followed by the
+      // arguments
+      locals.add(new Local(method ? "this" : "", 0));
+      stackDepth = function.arity + 1;
+      function.chunk.maxStack = stackDepth;
+    }
+  }
+
+  private FunctionState current;
+  // line of the last token emitted, for reporting compile errors on nodes that carry no token
+  private int line = 1;
+
+  CompiledFunction compile(List<Stmt> statements){
+    current = new FunctionState(null, new CompiledFunction(null, 0), false);
+
+    for (Stmt statement : statements){
+      if (statement instanceof Stmt.Expression){
+        // like Interpreter.interpret, top level expression statements echo their value
+        compile(((Stmt.Expression) statement).expression);
+        emit(OpCode.PRINT, null);
+        adjustStack(-1);
+      } else {
+        compile(statement);
+      }
+    }
+    emitReturn();
+    return current.function;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    namedVariable(expr.name, expr.depth, true);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type){
+      case GREATER -> emit(OpCode.GREATER, expr.operator);
+      case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL, expr.operator);
+      case LESS -> emit(OpCode.LESS, expr.operator);
+      case LESS_EQUAL -> emit(OpCode.LESS_EQUAL, expr.operator);
+      case BANG_EQUAL -> emit(OpCode.NOT_EQUAL, expr.operator);
+      case EQUAL_EQUAL -> emit(OpCode.EQUAL, expr.operator);
+      case MINUS -> emit(OpCode.SUBTRACT, expr.operator);
+      case PLUS -> emit(OpCode.ADD, expr.operator);
+      case SLASH -> emit(OpCode.DIVIDE, expr.operator);
+      case STAR -> emit(OpCode.MULTIPLY, expr.operator);
+      default -> {
+        // the Interpreter evaluates both sides of an unknown operator and yields nil
+        emit(OpCode.POP, expr.operator);
+        emit(OpCode.POP, expr.operator);
+        emit(OpCode.NIL, expr.operator);
+      }
+    }
+    adjustStack(-1);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    // a method call leaves the receiver where the callee would go
+    Expr.Get method = expr.callee instanceof Expr.Get ? (Expr.Get) expr.callee : null;
+    compile(method != null ? method.object : expr.callee);
+    for (Expr arg : expr.args){
+      compile(arg);
+    }
+    if (method != null){
+      emitCache(OpCode.INVOKE, method.name);
+    } else {
+      emit(OpCode.CALL, expr.paren);
+    }
+    emit((byte) expr.args.size(), expr.paren);
+    adjustStack(-expr.args.size());
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    emitCache(OpCode.GET_PROPERTY, expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null){
+      emit(OpCode.NIL, null);
+    } else if (expr.value == Boolean.TRUE){
+      emit(OpCode.TRUE, null);
+    } else if (expr.value == Boolean.FALSE){
+      emit(OpCode.FALSE, null);
+    } else {
+      emitConstant(OpCode.CONSTANT, expr.value, null);
+    }
+    adjustStack(1);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR){
+      int elseJump = emitJump(OpCode.JUMP_IF_FALSE, expr.operator);
+      int endJump = emitJump(OpCode.JUMP, expr.operator);
+      patchJump(elseJump);
+      emit(OpCode.POP, expr.operator);
+      adjustStack(-1);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OpCode.JUMP_IF_FALSE, expr.operator);
+      emit(OpCode.POP, expr.operator);
+      adjustStack(-1);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    emitCache(OpCode.SET_PROPERTY, expr.name);
+    adjustStack(-1);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    switch (expr.operator.type){
+      case BANG -> emit(OpCode.NOT, expr.operator);
+      case MINUS -> emit(OpCode.NEGATE, expr.operator);
+      default -> {
+        emit(OpCode.POP, expr.operator);
+        emit(OpCode.NIL, expr.operator);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, expr.depth, false);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements){
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    current.loop.breakJumps.add(jumpOutOfBody(stmt.keyword));
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    emitConstant(OpCode.CLASS, stmt.name.lexeme, stmt.name);
+    adjustStack(1);
+    // declared before the methods are compiled so they can refer to the class
+    if (stmt.slot != Resolver.GLOBAL) addLocal(stmt.name);
+    for (Stmt.Function method : stmt.methods){
+      function(method);
+      emitConstant(OpCode.METHOD, method.name.lexeme, method.name);
+      adjustStack(-1);
+    }
+    if (stmt.slot == Resolver.GLOBAL){
+      emitConstant(OpCode.DEFINE_GLOBAL, stmt.name.lexeme, stmt.name);
+      adjustStack(-1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    current.loop.continueJumps.add(jumpOutOfBody(stmt.keyword));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compileDiscarded(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // declared before the body is compiled so the function can call itself
+    if (stmt.slot != Resolver.GLOBAL) addLocal(stmt.name);
+    function(stmt);
+    if (stmt.slot == Resolver.GLOBAL){
+      emitConstant(OpCode.DEFINE_GLOBAL, stmt.name.lexeme, stmt.name);
+      adjustStack(-1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    int thenJump = jumpIfFalse(stmt.condition);
+    compile(stmt.thenBranch);
+    if (stmt.elseBranch == null){
+      patchJump(thenJump);
+      return null;
+    }
+
+    int elseJump = emitJump(OpCode.JUMP, null);
+    patchJump(thenJump);
+    compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT, null);
+    adjustStack(-1);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null){
+      compile(stmt.value);
+    } else if (current.initializer){
+      emit(OpCode.GET_LOCAL, stmt.keyword);
+      emit((byte) 0, stmt.keyword);
+      adjustStack(1);
+    } else {
+      emit(OpCode.NIL, stmt.keyword);
+      adjustStack(1);
+    }
+    emit(OpCode.RETURN, stmt.keyword);
+    adjustStack(-1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null){
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL, stmt.name);
+      adjustStack(1);
+    }
+
+    if (stmt.slot == Resolver.GLOBAL){
+      emitConstant(OpCode.DEFINE_GLOBAL, stmt.name.lexeme, stmt.name);
+      adjustStack(-1);
+    } else {
+      // the initializer's value is already sitting in the new local's stack slot
+      addLocal(stmt.name);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk().count;
+    int exitJump = jumpIfFalse(stmt.condition);
+
+    Loop loop = new Loop(current.loop, current.scopeDepth);
+    current.loop = loop;
+    compile(stmt.body);
+    current.loop = loop.enclosing;
+
+    for (int jump : loop.continueJumps){
+      patchJump(jump);
+    }
+    if (stmt.increment != null) compileDiscarded(stmt.increment);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    for (int jump : loop.breakJumps){
+      patchJump(jump);
+    }
+    return null;
+  }
+
+  // Pops the locals of the scopes inside the loop body, closing any that were captured,
+  // and emits a jump for the loop to patch. The locals stay declared for whatever code
+  // follows in the same scope, it just can't be reached.
+  private int jumpOutOfBody(Token keyword){
+    int stackDepth = current.stackDepth;
+    List<Local> locals = current.locals;
+    for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > current.loop.scopeDepth; i--){
+      emit(locals.get(i).captured ? OpCode.CLOSE_UPVALUE : OpCode.POP, keyword);
+      adjustStack(-1);
+    }
+    int jump = emitJump(OpCode.JUMP, keyword);
+    current.stackDepth = stackDepth;
+    return jump;
+  }
+
+  // An expression whose value is dropped. An assignment to a local stores and pops in one
+  // instruction, as `i = i + 1` and `sum = sum + x` in a loop body do.
+  private void compileDiscarded(Expr expr){
+    if (expr instanceof Expr.Assign){
+      Expr.Assign assign = (Expr.Assign) expr;
+      int slot = assign.depth == Resolver.GLOBAL ? -1 : resolveLocal(current, assign.name);
+      if (slot != -1){
+        compile(assign.value);
+        emit(OpCode.SET_LOCAL_POP, assign.name);
+        emit((byte) slot, assign.name);
+        adjustStack(-1);
+        return;
+      }
+    }
+    compile(expr);
+    emit(OpCode.POP, null);
+    adjustStack(-1);
+  }
+
+  // Compiles an if or loop condition and a jump, to be patched, taken when it is false.
+  // The jump pops the condition, and a comparison jumps on its two operands without
+  // making a Boolean first.
+  private int jumpIfFalse(Expr condition){
+    if (condition instanceof Expr.Binary){
+      Expr.Binary binary = (Expr.Binary) condition;
+      byte op = switch (binary.operator.type){
+        case GREATER -> OpCode.JUMP_IF_NOT_GREATER;
+        case GREATER_EQUAL -> OpCode.JUMP_IF_NOT_GREATER_EQUAL;
+        case LESS -> OpCode.JUMP_IF_NOT_LESS;
+        case LESS_EQUAL -> OpCode.JUMP_IF_NOT_LESS_EQUAL;
+        default -> OpCode.POP_JUMP_IF_FALSE;
+      };
+      if (op != OpCode.POP_JUMP_IF_FALSE){
+        compile(binary.left);
+        compile(binary.right);
+        adjustStack(-2);
+        return emitJump(op, binary.operator);
+      }
+    }
+    compile(condition);
+    adjustStack(-1);
+    return emitJump(OpCode.POP_JUMP_IF_FALSE, null);
+  }
+
+  private void compile(Stmt stmt){
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr){
+    expr.accept(this);
+  }
+
+  private void function(Stmt.Function stmt){
+    CompiledFunction function = new CompiledFunction(stmt.name.lexeme, stmt.params.size());
+    FunctionState state = new FunctionState(current, function, stmt.receiver != Resolver.GLOBAL);
+    state.initializer = stmt.initializer;
+    current = state;
+    beginScope();
+
+    for (Token param : stmt.params){
+      addLocal(param);
+    }
+    for (Stmt statement : stmt.body){
+      compile(statement);
+    }
+    emitReturn();
+
+    current = state.enclosing;
+    state.function.upvalueCount = state.upvalues.size();
+
+    emitConstant(OpCode.CLOSURE, state.function, stmt.name);
+    adjustStack(1);
+    for (UpvalueRef upvalue : state.upvalues){
+      emit(upvalue.isLocal ? (byte) 1 : (byte) 0, stmt.name);
+      emit((byte) upvalue.index, stmt.name);
+    }
+  }
+
+  private void namedVariable(Token name, int depth, boolean assign){
+    if (!assign) adjustStack(1);
+
+    if (depth == Resolver.GLOBAL){
+      emitConstant(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, name.lexeme, name);
+      return;
+    }
+
+    int arg = resolveLocal(current, name);
+    if (arg != -1){
+      emit(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, name);
+    } else {
+      arg = resolveUpvalue(current, name);
+      if (arg == -1) throw new IllegalStateException("Unresolved local '" + name.lexeme + "'.");
+      emit(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, name);
+    }
+    emit((byte) arg, name);
+  }
+
+  private int resolveLocal(FunctionState state, Token name){
+    for (int i = state.locals.size() - 1; i >= 0; i--){
+      if (state.locals.get(i).name.equals(name.lexeme)) return i;
+    }
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, Token name){
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1){
+      state.enclosing.locals.get(local).captured = true;
+      return addUpvalue(state, true, local, name);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1){
+      return addUpvalue(state, false, upvalue, name);
+    }
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, boolean isLocal, int index, Token name){
+    for (int i = 0; i < state.upvalues.size(); i++){
+      UpvalueRef upvalue = state.upvalues.get(i);
+      if (upvalue.isLocal == isLocal && upvalue.index == index) return i;
+    }
+
+    if (state.upvalues.size() == MAX_UPVALUES){
+      Lox.error(name.line, "Too many closure variables in function.");
+      return 0;
+    }
+    state.upvalues.add(new UpvalueRef(isLocal, index));
+    return state.upvalues.size() - 1;
+  }
+
+  private void addLocal(Token name){
+    if (current.locals.size() == MAX_LOCALS){
+      Lox.error(name.line, "Too many local variables in function.");
+      return;
+    }
+    current.locals.add(new Local(name.lexeme, current.scopeDepth));
+  }
+
+  private void beginScope(){
+    current.scopeDepth++;
+  }
+
+  private void endScope(){
+    current.scopeDepth--;
+
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth){
+      emit(locals.get(locals.size() - 1).captured ? OpCode.CLOSE_UPVALUE : OpCode.POP, null);
+      adjustStack(-1);
+      locals.remove(locals.size() - 1);
+    }
+  }
+
+  private Chunk chunk(){
+    return current.function.chunk;
+  }
+
+  private void emit(byte b, Token token){
+    if (token != null) line = token.line;
+    chunk().write(b, token);
+  }
+
+  private void emitConstant(byte op, Object value, Token token){
+    int index = chunk().addConstant(value);
+    if (index > MAX_U16){
+      Lox.error(line, "Too many constants in one chunk.");
+      index = 0;
+    }
+    emit(op, token);
+    emit((byte) (index >> 8), token);
+    emit((byte) index, token);
+  }
+
+  private void emitReturn(){
+    if (current.initializer){
+      emit(OpCode.GET_LOCAL, null);
+      emit((byte) 0, null);
+    } else {
+      emit(OpCode.NIL, null);
+    }
+    adjustStack(1);
+    emit(OpCode.RETURN, null);
+    adjustStack(-1);
+  }
+
+  private void adjustStack(int delta){
+    current.stackDepth += delta;
+    if (current.stackDepth > chunk().maxStack) chunk().maxStack = current.stackDepth;
+  }
+
+  // op with a new inline cache for the property name as its operand
+  private void emitCache(byte op, Token name){
+    int index = chunk().addCache();
+    if (index > MAX_U16){
+      Lox.error(name.line, "Too many property accesses in one chunk.");
+      index = 0;
+    }
+    emit(op, name);
+    emit((byte) (index >> 8), name);
+    emit((byte) index, name);
+  }
+
+  private int emitJump(byte op, Token token){
+    emit(op, token);
+    emit((byte) 0xff, token);
+    emit((byte) 0xff, token);
+    current.jumpDepths.put(chunk().count - 2, current.stackDepth);
+    return chunk().count - 2;
+  }
+
+  private void patchJump(int offset){
+    int jump = chunk().count - offset - 2;
+    if (jump > MAX_U16){
+      Lox.error(line, "Too much code to jump over.");
+    }
+    chunk().code[offset] = (byte) (jump >> 8);
+    chunk().code[offset + 1] = (byte) jump;
+    current.stackDepth = current.jumpDepths.remove(offset);
+  }
+
+  private void emitLoop(int loopStart){
+    emit(OpCode.LOOP, null);
+
+    int offset = chunk().count - loopStart + 2;
+    if (offset > MAX_U16){
+      Lox.error(line, "Loop body too large.");
+    }
+    emit((byte) (offset >> 8), null);
+    emit((byte) offset, null);
+  }
+}
@@ -4,66 +4,97 @@ import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-  final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  // A global variable. Once defined its cell is never replaced, only updated, so a use
+  // site can look the cell up once and keep it; redefining the name in the REPL writes
+  // through to every cached reference.
+  static final class Global {
+    Object value;
 
-  Environment(){
-    enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
+    Object get(Token name){
+      if (value == null) {
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+      }
+      return value;
+    }
   }
 
-  void define(String name, Object value){
-    values.put(name, value);
-  }
+  // A local that a closure captures. The declaring frame's slot holds the cell instead of
+  // the value, and every closure over it holds the same cell, so an assignment through any
+  // of them is seen by all.
+  static final class Cell {
+    Object value;
 
-  Object get(Token name){
-    if (values.containsKey(name.lexeme)){
-      if (values.get(name.lexeme) != null) {
-        return values.get(name.lexeme);
-      } else {
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-      }
+    Cell(Object value){
+      this.value = value;
     }
+  }
 
-    if (enclosing != null) return enclosing.get(name);
+  // globals are looked up by name, everything the Resolver saw is a slot
+  private final Map<String, Global> values;
+  final Object[] slots;
+  // the cells captured by the function this frame is running, null outside a function
+  final Cell[] upvalues;
 
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  Environment(){
+    values = new HashMap<>();
+    slots = null;
+    upvalues = null;
   }
 
-  Object getAt(int distance, String name){
-    return ancestor(distance).values.get(name);
+  // A frame: one per call, or per run of a top level block. Blocks nested in either keep
+  // their locals in its slots, and nothing links a frame to the one it was created in, so a
+  // closure keeps alive only the cells it captured.
+  Environment(Cell[] upvalues, int localCount) {
+    this.values = null;
+    this.slots = new Object[localCount];
+    this.upvalues = upvalues;
   }
 
-  Object getAtIndex(int index){
-    return null;
+  void define(String name, Object value){
+    Global global = values.get(name);
+    if (global == null){
+      global = new Global();
+      values.put(name, global);
+    }
+    global.value = value;
   }
 
-  void assignAt(int distance, Token name, Object value){
-    ancestor(distance).values.put(name.lexeme, value);
+  void define(int slot, Object value){
+    slots[slot] = value;
   }
 
-  Environment ancestor(int distance){
-    Environment environment = this;
+  Object get(Token name){
+    return global(name).get(name);
+  }
 
-    for (int i = 0; i < distance; i++){
-      environment = environment.enclosing;
+  // the cell behind a defined global, what use sites cache
+  Global global(Token name){
+    Global global = values.get(name.lexeme);
+    if (global == null) {
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
-    return environment;
+    return global;
   }
 
-  void assign(Token name, Object value){
-    if (values.containsKey(name.lexeme)){
-      values.put(name.lexeme, value);
-      return;
-    }
+  // the global's value without the undefined check, null when it is undefined or nil
+  Object lookup(String name){
+    Global global = values.get(name);
+    return global == null ? null : global.value;
+  }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+  // The cells for a closure declared in this frame. Each capture is a slot of this frame,
+  // which holds a Cell by the time the declaration runs, or ~i for this frame's own
+  // upvalue i when the variable is from further out.
+  Cell[] capture(int[] captures){
+    Cell[] cells = new Cell[captures.length];
+    for (int i = 0; i < captures.length; i++){
+      int capture = captures[i];
+      cells[i] = capture >= 0 ? (Cell) slots[capture] : upvalues[~capture];
     }
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    return cells;
+  }
+
+  void assign(Token name, Object value){
+    global(name).value = value;
   }
 }
@@ -7,9 +7,11 @@ abstract class Expr {
  R visitAssignExpr(Assign expr);
  R visitBinaryExpr(Binary expr);
  R visitCallExpr(Call expr);
+ R visitGetExpr(Get expr);
  R visitGroupingExpr(Grouping expr);
  R visitLiteralExpr(Literal expr);
  R visitLogicalExpr(Logical expr);
+ R visitSetExpr(Set expr);
  R visitUnaryExpr(Unary expr);
  R visitVariableExpr(Variable expr);
  }
@@ -19,9 +21,11 @@ abstract class Expr {
  R visitAssignExprRPN(Assign expr);
  R visitBinaryExprRPN(Binary expr);
  R visitCallExprRPN(Call expr);
+ R visitGetExprRPN(Get expr);
  R visitGroupingExprRPN(Grouping expr);
  R visitLiteralExprRPN(Literal expr);
  R visitLogicalExprRPN(Logical expr);
+ R visitSetExprRPN(Set expr);
  R visitUnaryExprRPN(Unary expr);
  R visitVariableExprRPN(Variable expr);
  }
@@ -30,6 +34,11 @@ abstract class Expr {
  static class Assign extends Expr {
  final Token name;
  final Expr value;
+ int depth = Resolver.GLOBAL;
+ int slot = Resolver.GLOBAL;
+ int upvalue = Resolver.GLOBAL;
+ boolean captured;
+ Environment.Global global;
  Assign(Token name, Expr value) {
  this.name = name;
  this.value = value;
@@ -67,6 +76,7 @@ abstract class Expr {
  final Expr callee;
  final Token paren;
  final List<Expr> args;
+ CallCache cache = new CallCache();
  Call(Expr callee, Token paren, List<Expr> args) {
  this.callee = callee;
  this.paren = paren;
@@ -82,6 +92,24 @@ abstract class Expr {
  return visitor.visitCallExprRPN(this);
  }
  }
+ static class Get extends Expr {
+ final Expr object;
+ final Token name;
+ PropertyCache cache = new PropertyCache();
+ Get(Expr object, Token name) {
+ this.object = object;
+ this.name = name;
+ }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+ return visitor.visitGetExpr(this);
+ }
+ @Override
+ <R> R acceptRPN(VisitorRPN<R> visitor) {
+ return visitor.visitGetExprRPN(this);
+ }
+ }
  static class Grouping extends Expr {
  final Expr expression;
  Grouping(Expr expression) {
@@ -131,6 +159,26 @@ abstract class Expr {
  return visitor.visitLogicalExprRPN(this);
  }
  }
+ static class Set extends Expr {
+ final Expr object;
+ final Token name;
+ final Expr value;
+ PropertyCache cache = new PropertyCache();
+ Set(Expr object, Token name, Expr value) {
+ this.object = object;
+ this.name = name;
+ this.value = value;
+ }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+ return visitor.visitSetExpr(this);
+ }
+ @Override
+ <R> R acceptRPN(VisitorRPN<R> visitor) {
+ return visitor.visitSetExprRPN(this);
+ }
+ }
  static class Unary extends Expr {
  final Token operator;
  final Expr right;
@@ -150,6 +198,11 @@ abstract class Expr {
  }
  static class Variable extends Expr {
  final Token name;
+ int depth = Resolver.GLOBAL;
+ int slot = Resolver.GLOBAL;
+ int upvalue = Resolver.GLOBAL;
+ boolean captured;
+ Environment.Global global;
  Variable(Token name) {
  this.name = name;
  }
@@ -0,0 +1,775 @@
+package lox;
+
+import java.util.Arrays;
+
+// Executable form of an Expr, built once by NodeCompiler. Every node has its operator,
+// slot and whether a variable is in a cell bound at compile time, so evaluating one is a plain virtual call
+// with no visitor dispatch and no switch on the token type.
+abstract class ExprNode {
+  abstract Object evaluate(Environment env);
+
+  // The value for a parent that can only use a number, so arithmetic nested in arithmetic
+  // or a comparison never boxes what it passes up. One that isn't a number is thrown back
+  // as NotNumber, and the parent finishes with the boxed checks instead.
+  double evaluateNumber(Environment env){
+    return number(evaluate(env));
+  }
+
+  static double number(Object value){
+    if (value instanceof Double) return (double) value;
+    throw new NotNumber(value);
+  }
+
+  static final class NotNumber extends RuntimeException {
+    final Object value;
+
+    NotNumber(Object value){
+      super(null, null, false, false);
+      this.value = value;
+    }
+  }
+
+  static final class Constant extends ExprNode {
+    private final Object value;
+
+    Constant(Object value){
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return value;
+    }
+  }
+
+  static final class LocalGet0 extends ExprNode {
+    private final int slot;
+
+    LocalGet0(int slot){
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return env.slots[slot];
+    }
+  }
+
+  // a local of this frame that a closure captured
+  static final class CellGet extends ExprNode {
+    private final int slot;
+
+    CellGet(int slot){
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return ((Environment.Cell) env.slots[slot]).value;
+    }
+  }
+
+  static final class UpvalueGet extends ExprNode {
+    private final int upvalue;
+
+    UpvalueGet(int upvalue){
+      this.upvalue = upvalue;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return env.upvalues[upvalue].value;
+    }
+  }
+
+  static final class LocalSet0 extends ExprNode {
+    private final int slot;
+    private final ExprNode value;
+
+    LocalSet0(int slot, ExprNode value){
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object result = value.evaluate(env);
+      env.slots[slot] = result;
+      return result;
+    }
+  }
+
+  static final class CellSet extends ExprNode {
+    private final int slot;
+    private final ExprNode value;
+
+    CellSet(int slot, ExprNode value){
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object result = value.evaluate(env);
+      ((Environment.Cell) env.slots[slot]).value = result;
+      return result;
+    }
+  }
+
+  static final class UpvalueSet extends ExprNode {
+    private final int upvalue;
+    private final ExprNode value;
+
+    UpvalueSet(int upvalue, ExprNode value){
+      this.upvalue = upvalue;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object result = value.evaluate(env);
+      env.upvalues[upvalue].value = result;
+      return result;
+    }
+  }
+
+  static final class GlobalGet extends ExprNode {
+    private final Environment globals;
+    private final Token name;
+    private Environment.Global global;
+
+    GlobalGet(Environment globals, Token name){
+      this.globals = globals;
+      this.name = name;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      if (global == null) global = globals.global(name);
+      return global.get(name);
+    }
+  }
+
+  static final class GlobalSet extends ExprNode {
+    private final Environment globals;
+    private final Token name;
+    private final ExprNode value;
+    private Environment.Global global;
+
+    GlobalSet(Environment globals, Token name, ExprNode value){
+      this.globals = globals;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object result = value.evaluate(env);
+      if (global == null) global = globals.global(name);
+      global.value = result;
+      return result;
+    }
+  }
+
+  abstract static class BinaryNode extends ExprNode {
+    final Token operator;
+    final ExprNode left;
+    final ExprNode right;
+
+    BinaryNode(Token operator, ExprNode left, ExprNode right){
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  // Type feedback for the operators that take more than numbers. A node starts out
+  // UNINITIALIZED, its first run picks the case the operands fall into, and from then on
+  // it runs only that case behind a guard. The first time the guard fails it turns
+  // GENERIC for good, so a site whose types keep changing doesn't keep respecializing.
+  private static final int UNINITIALIZED = 0;
+  private static final int NUMBERS = 1;
+  private static final int STRINGS = 2;
+  private static final int GENERIC = 3;
+
+  static final class Add extends BinaryNode {
+    private int state = UNINITIALIZED;
+
+    Add(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      switch (state){
+        case NUMBERS -> {
+          try {
+            return evaluateNumber(env);
+          } catch (NotNumber e){
+            return e.value;
+          }
+        }
+        case STRINGS -> {
+          Object a = left.evaluate(env);
+          Object b = right.evaluate(env);
+          if (a instanceof String && b instanceof String) return (String) a + (String) b;
+          state = GENERIC;
+          return Interpreter.add(operator, a, b);
+        }
+        case GENERIC -> {
+          Object a = left.evaluate(env);
+          return Interpreter.add(operator, a, right.evaluate(env));
+        }
+      }
+
+      Object a = left.evaluate(env);
+      Object b = right.evaluate(env);
+      if (a instanceof Double && b instanceof Double){
+        state = NUMBERS;
+      } else if (a instanceof String && b instanceof String){
+        state = STRINGS;
+      } else {
+        state = GENERIC;
+      }
+      return Interpreter.add(operator, a, b);
+    }
+
+    @Override
+    double evaluateNumber(Environment env){
+      if (state != NUMBERS) return number(evaluate(env));
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a + b;
+    }
+
+    private double generic(Object a, Object b){
+      state = GENERIC;
+      return number(Interpreter.add(operator, a, b));
+    }
+  }
+
+  // The rest only take numbers, so they always run the number case and fall back to the
+  // checks with boxed operands, which fail, when an operand isn't one.
+  static final class Subtract extends BinaryNode {
+    Subtract(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return evaluateNumber(env);
+    }
+
+    @Override
+    double evaluateNumber(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a - b;
+    }
+
+    private double generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a - (double) b;
+    }
+  }
+
+  static final class Multiply extends BinaryNode {
+    Multiply(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return evaluateNumber(env);
+    }
+
+    @Override
+    double evaluateNumber(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a * b;
+    }
+
+    private double generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a * (double) b;
+    }
+  }
+
+  static final class Divide extends BinaryNode {
+    Divide(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return evaluateNumber(env);
+    }
+
+    @Override
+    double evaluateNumber(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      // reports division by zero
+      if (b == 0.0) Interpreter.checkNumberOperands(operator, a, b);
+      return a / b;
+    }
+
+    private double generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a / (double) b;
+    }
+  }
+
+  static final class Greater extends BinaryNode {
+    Greater(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a > b;
+    }
+
+    private boolean generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a > (double) b;
+    }
+  }
+
+  static final class GreaterEqual extends BinaryNode {
+    GreaterEqual(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a >= b;
+    }
+
+    private boolean generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a >= (double) b;
+    }
+  }
+
+  static final class Less extends BinaryNode {
+    Less(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a < b;
+    }
+
+    private boolean generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a < (double) b;
+    }
+  }
+
+  static final class LessEqual extends BinaryNode {
+    LessEqual(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      double a;
+      try {
+        a = left.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(e.value, right.evaluate(env));
+      }
+      double b;
+      try {
+        b = right.evaluateNumber(env);
+      } catch (NotNumber e){
+        return generic(a, e.value);
+      }
+      return a <= b;
+    }
+
+    private boolean generic(Object a, Object b){
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double) a <= (double) b;
+    }
+  }
+
+  // == and != also take two strings, so they specialize like Add
+  static final class Equal extends BinaryNode {
+    private int state = UNINITIALIZED;
+
+    Equal(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      if (state == NUMBERS){
+        double a;
+        try {
+          a = left.evaluateNumber(env);
+        } catch (NotNumber e){
+          return generic(e.value, right.evaluate(env));
+        }
+        double b;
+        try {
+          b = right.evaluateNumber(env);
+        } catch (NotNumber e){
+          return generic(a, e.value);
+        }
+        // what Double.equals does, NaN equals itself and 0 isn't -0
+        return Double.compare(a, b) == 0;
+      }
+
+      Object a = left.evaluate(env);
+      Object b = right.evaluate(env);
+      Interpreter.checkNumberOperands(operator, a, b);
+      if (state == UNINITIALIZED) state = a instanceof Double && b instanceof Double ? NUMBERS : GENERIC;
+      return Interpreter.isEqual(a, b);
+    }
+
+    private boolean generic(Object a, Object b){
+      state = GENERIC;
+      Interpreter.checkNumberOperands(operator, a, b);
+      return Interpreter.isEqual(a, b);
+    }
+  }
+
+  static final class NotEqual extends BinaryNode {
+    private int state = UNINITIALIZED;
+
+    NotEqual(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      if (state == NUMBERS){
+        double a;
+        try {
+          a = left.evaluateNumber(env);
+        } catch (NotNumber e){
+          return generic(e.value, right.evaluate(env));
+        }
+        double b;
+        try {
+          b = right.evaluateNumber(env);
+        } catch (NotNumber e){
+          return generic(a, e.value);
+        }
+        return Double.compare(a, b) != 0;
+      }
+
+      Object a = left.evaluate(env);
+      Object b = right.evaluate(env);
+      Interpreter.checkNumberOperands(operator, a, b);
+      if (state == UNINITIALIZED) state = a instanceof Double && b instanceof Double ? NUMBERS : GENERIC;
+      return !Interpreter.isEqual(a, b);
+    }
+
+    private boolean generic(Object a, Object b){
+      state = GENERIC;
+      Interpreter.checkNumberOperands(operator, a, b);
+      return !Interpreter.isEqual(a, b);
+    }
+  }
+
+  // operators the Interpreter has no case for: both sides run, the result is nil
+  static final class Discard extends BinaryNode {
+    Discard(Token operator, ExprNode left, ExprNode right){
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      left.evaluate(env);
+      right.evaluate(env);
+      return null;
+    }
+  }
+
+  static final class Negate extends ExprNode {
+    private final Token operator;
+    private final ExprNode right;
+
+    Negate(Token operator, ExprNode right){
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return evaluateNumber(env);
+    }
+
+    @Override
+    double evaluateNumber(Environment env){
+      try {
+        return -right.evaluateNumber(env);
+      } catch (NotNumber e){
+        Interpreter.checkNumberOperand(operator, e.value);
+        throw e;
+      }
+    }
+  }
+
+  static final class Not extends ExprNode {
+    private final ExprNode right;
+
+    Not(ExprNode right){
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return !Interpreter.isTruthy(right.evaluate(env));
+    }
+  }
+
+  static final class And extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    And(ExprNode left, ExprNode right){
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object value = left.evaluate(env);
+      if (!Interpreter.isTruthy(value)) return value;
+      return right.evaluate(env);
+    }
+  }
+
+  static final class Or extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    Or(ExprNode left, ExprNode right){
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object value = left.evaluate(env);
+      if (Interpreter.isTruthy(value)) return value;
+      return right.evaluate(env);
+    }
+  }
+
+  static final class Call extends ExprNode {
+    private final Interpreter interpreter;
+    private final ExprNode callee;
+    private final Token paren;
+    private final ExprNode[] args;
+    private final CallCache cache;
+
+    Call(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] args){
+      this.interpreter = interpreter;
+      this.callee = callee;
+      this.paren = paren;
+      this.args = args;
+      this.cache = new CallCache();
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return call(callee.evaluate(env), env);
+    }
+
+    // evaluates the arguments and calls function with them
+    Object call(Object function, Environment env){
+      switch (args.length){
+        case 0 -> {return interpreter.exitCall(interpreter.enterCall(cache.lookup(function, paren, 0), paren).call0(interpreter));}
+        case 1 -> {
+          Object a = args[0].evaluate(env);
+          return interpreter.exitCall(interpreter.enterCall(cache.lookup(function, paren, 1), paren).call1(interpreter, a));
+        }
+        case 2 -> {
+          Object a = args[0].evaluate(env);
+          Object b = args[1].evaluate(env);
+          return interpreter.exitCall(interpreter.enterCall(cache.lookup(function, paren, 2), paren).call2(interpreter, a, b));
+        }
+        case 3 -> {
+          Object a = args[0].evaluate(env);
+          Object b = args[1].evaluate(env);
+          Object c = args[2].evaluate(env);
+          return interpreter.exitCall(interpreter.enterCall(cache.lookup(function, paren, 3), paren).call3(interpreter, a, b, c));
+        }
+        case 4 -> {
+          Object a = args[0].evaluate(env);
+          Object b = args[1].evaluate(env);
+          Object c = args[2].evaluate(env);
+          Object d = args[3].evaluate(env);
+          return interpreter.exitCall(interpreter.enterCall(cache.lookup(function, paren, 4), paren).call4(interpreter, a, b, c, d));
+        }
+      }
+
+      Object[] arguments = new Object[args.length];
+      for (int i = 0; i < args.length; i++){
+        arguments[i] = args[i].evaluate(env);
+      }
+
+      LoxCallable callable = interpreter.enterCall(cache.lookup(function, paren, arguments.length), paren);
+      if (callable instanceof NodeFunction) return interpreter.exitCall(((NodeFunction) callable).call(arguments));
+      return interpreter.exitCall(callable.call(interpreter, Arrays.asList(arguments)));
+    }
+  }
+
+  static final class GetProperty extends ExprNode {
+    private final ExprNode object;
+    private final Token name;
+    private final PropertyCache cache = new PropertyCache();
+
+    GetProperty(ExprNode object, Token name){
+      this.object = object;
+      this.name = name;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      return cache.get(object.evaluate(env), name);
+    }
+  }
+
+  static final class SetProperty extends ExprNode {
+    private final ExprNode object;
+    private final Token name;
+    private final ExprNode value;
+    private final PropertyCache cache = new PropertyCache();
+
+    SetProperty(ExprNode object, Token name, ExprNode value){
+      this.object = object;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object instance = object.evaluate(env);
+      Object result = value.evaluate(env);
+      cache.set(instance, name, result);
+      return result;
+    }
+  }
+
+  // object.name(...), see Interpreter.invoke. Anything but a method that takes this many
+  // arguments is called through fallback, whose callee is never evaluated.
+  static final class Invoke extends ExprNode {
+    private final Interpreter interpreter;
+    private final ExprNode object;
+    private final Token name;
+    private final Token paren;
+    private final ExprNode[] args;
+    private final Call fallback;
+    private final PropertyCache cache = new PropertyCache();
+
+    Invoke(Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] args){
+      this.interpreter = interpreter;
+      this.object = object;
+      this.name = name;
+      this.paren = paren;
+      this.args = args;
+      this.fallback = new Call(interpreter, null, paren, args);
+    }
+
+    @Override
+    Object evaluate(Environment env){
+      Object instance = object.evaluate(env);
+      LoxMethod method = cache.method(instance, name);
+      if (!(method instanceof NodeFunction) || method.arity() != args.length){
+        return fallback.call(cache.get(instance, name), env);
+      }
+
+      NodeFunction function = (NodeFunction) method;
+      Environment frame = function.frame();
+      for (int i = 0; i < args.length; i++){
+        frame.slots[i] = args[i].evaluate(env);
+      }
+      interpreter.enterCall(function, paren);
+      return interpreter.exitCall(function.run(frame, (LoxInstance) instance));
+    }
+  }
+}
@@ -1,17 +1,47 @@
 package lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static lox.TokenType.SLASH;
+import static lox.TokenType.*;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
+  // most calls that can be in progress at once before the next one is a stack overflow,
+  // set with --max-depth
+  static int maxDepth = 1 << 16;
+
   final Environment globals = new Environment();
   private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // Set by a return, break or continue statement. executeBlock stops as soon as it sees
+  // one, visitWhileStmt takes care of break and continue, and LoxFunction.call picks a
+  // return's value up with takeReturnValue. Plain fields rather than exceptions, so a
+  // loop with a break in it costs no more than one without.
+  private Jump jump = null;
+  private Object returnValue;
+  // set along with a RETURN jump by a return statement whose value is a call to a LoxFunction:
+  // the call isn't made there but handed to LoxFunction.run, which makes it in a loop so
+  // tail recursion runs in constant Java stack
+  private LoxFunction tailCallee;
+  private Object[] tailArguments;
+  // The call site of every call in progress with the innermost last, for the depth limit
+  // and callStack. A tail call takes over its caller's entry. It is not where calls run:
+  // each one still recurses in Java, so past what the thread's stack holds a script stops
+  // with a StackOverflowError that stackOverflow reports at the innermost call site.
+  private Token[] callSites = new Token[64];
+  private int depth = 0;
+  // set while evaluateNumber hands a value that isn't a number back to its caller
+  private boolean hasNonNumber = false;
+  private Object nonNumber;
+
+  private enum Jump {
+    RETURN,
+    BREAK,
+    CONTINUE
+  }
 
   Interpreter(){
     globals.define("clock", new LoxCallable() {
@@ -42,7 +72,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
       }
     } catch (RuntimeError err){
       Lox.runtimeError(err);
+    } catch (StackOverflowError err){
+      stackOverflow(err);
     }
+    clearCallStack();
   }
   @Override
   public Object visitLiteralExpr(Expr.Literal expr){
@@ -61,6 +94,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     return evaluate(expr.right);
   }
 
+  @Override
+  public Object visitGetExpr(Expr.Get expr){
+    return expr.cache.get(evaluate(expr.object), expr.name);
+  }
+
+  @Override
+  public Object visitSetExpr(Expr.Set expr){
+    Object object = evaluate(expr.object);
+    Object value = evaluate(expr.value);
+    expr.cache.set(object, expr.name, value);
+    return value;
+  }
+
   @Override
   public Object visitGroupingExpr(Expr.Grouping expr){
     return evaluate(expr.expression);
@@ -74,7 +120,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
       case BANG -> {return !isTruthy(right);}
       case MINUS -> {
         checkNumberOperand(expr.operator, right);
-        return -(double) right;
+        return box(-(double) right);
       }
     }
     return null;
@@ -85,93 +131,264 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     return lookUpVariable(expr.name, expr);
   }
 
-  private Object lookUpVariable(Token name, Expr expr){
-    Integer distance = locals.get(expr);
-
-    if (distance != null){
-      return environment.getAt(distance, name.lexeme);
+  private Object lookUpVariable(Token name, Expr.Variable expr){
+    if (expr.depth == 0){
+      Object value = environment.slots[expr.slot];
+      return expr.captured ? ((Environment.Cell) value).value : value;
+    } else if (expr.depth != Resolver.GLOBAL){
+      return environment.upvalues[expr.upvalue].value;
     } else {
-      return globals.get(name);
+      if (expr.global == null) expr.global = globals.global(name);
+      return expr.global.get(name);
     }
   }
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr){
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
+    switch (expr.operator.type){
+      case PLUS, MINUS, STAR, SLASH -> {
+        double result = evaluateArithmetic(expr);
+        if (hasNonNumber) return takeNonNumber();
+        return box(result);
+      }
+      case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, BANG_EQUAL, EQUAL_EQUAL -> {
+        return evaluateComparison(expr);
+      }
+    }
+
+    evaluate(expr.left);
+    evaluate(expr.right);
+    return null;
+  }
+
+  // Arithmetic runs through evaluateNumber so the intermediate results of a chain like
+  // a * b - c stay unboxed, only the value that leaves the chain is boxed. When an
+  // operand turns out not to be a number, its value is parked in nonNumber and the
+  // boxed path takes over with exactly the old semantics.
+  private double evaluateNumber(Expr expr){
+    // variables and literals are the common leaves, read them without the visitor
+    Object value;
+    if (expr instanceof Expr.Variable){
+      value = lookUpVariable(((Expr.Variable) expr).name, (Expr.Variable) expr);
+    } else if (expr instanceof Expr.Literal){
+      value = ((Expr.Literal) expr).value;
+    } else if (isArithmetic(expr)){
+      return evaluateArithmetic((Expr.Binary) expr);
+    } else if (expr instanceof Expr.Grouping){
+      return evaluateNumber(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == MINUS){
+      Expr.Unary unary = (Expr.Unary) expr;
+      double right = evaluateNumber(unary.right);
+      if (hasNonNumber) checkNumberOperand(unary.operator, takeNonNumber());
+      return -right;
+    } else {
+      value = evaluate(expr);
+    }
+
+    if (value instanceof Double) return (double) value;
+    return parkNonNumber(value);
+  }
+
+  private static boolean isArithmetic(Expr expr){
+    if (!(expr instanceof Expr.Binary)) return false;
+    TokenType type = ((Expr.Binary) expr).operator.type;
+    return type == PLUS || type == MINUS || type == STAR || type == SLASH;
+  }
+
+  private double evaluateArithmetic(Expr.Binary expr){
+    double left = evaluateNumber(expr.left);
+    if (hasNonNumber){
+      Object boxedLeft = takeNonNumber();
+      return arithmetic(expr.operator, boxedLeft, evaluate(expr.right));
+    }
+    double right = evaluateNumber(expr.right);
+    if (hasNonNumber) return arithmetic(expr.operator, left, takeNonNumber());
 
     switch (expr.operator.type){
-      case GREATER -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left > (double) right;}
-      case GREATER_EQUAL -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left >= (double) right;}
-      case LESS -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left < (double) right;}
-      case LESS_EQUAL -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left <= (double) right;}
-      case BANG_EQUAL -> {
-        checkNumberOperands(expr.operator, left, right);
-        return !isEqual(left, right);}
-      case EQUAL_EQUAL -> {
-        checkNumberOperands(expr.operator, left, right);
-        return isEqual(left, right);}
+      case PLUS -> {return left + right;}
+      case MINUS -> {return left - right;}
+      case STAR -> {return left * right;}
+    }
+    if (right == 0.0) {
+      throw new RuntimeError(expr.operator, "This operand is not able to be used to divide by zero");
+    }
+    return left / right;
+  }
+
+  private double arithmetic(Token operator, Object left, Object right){
+    Object result;
+    switch (operator.type){
+      case PLUS -> result = add(operator, left, right);
       case MINUS -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left - (double) right;}
-      case PLUS -> {
-        if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
-        }
-        if (left instanceof String && right instanceof String){
-          return left + (String) right;
-        }
+        checkNumberOperands(operator, left, right);
+        result = (double) left - (double) right;}
+      case STAR -> {
+        checkNumberOperands(operator, left, right);
+        result = (double) left * (double) right;}
+      default -> {
+        checkNumberOperands(operator, left, right);
+        result = (double) left / (double) right;}
+    }
 
-        if (left instanceof String && right instanceof Double){
-          return left + stringify(right);
-        }
+    if (result instanceof Double) return (double) result;
+    return parkNonNumber(result);
+  }
 
-        if (left instanceof Double && right instanceof String) {
-          System.out.println(left);
-          System.out.println(right);
-          return stringify(left) + right;
-        }
+  private Object evaluateComparison(Expr.Binary expr){
+    Token operator = expr.operator;
+    double left = evaluateNumber(expr.left);
+    if (hasNonNumber) return comparison(operator, takeNonNumber(), evaluate(expr.right));
+    double right = evaluateNumber(expr.right);
+    if (hasNonNumber) return comparison(operator, left, takeNonNumber());
+
+    switch (operator.type){
+      case GREATER -> {return left > right;}
+      case GREATER_EQUAL -> {return left >= right;}
+      case LESS -> {return left < right;}
+      case LESS_EQUAL -> {return left <= right;}
+      case BANG_EQUAL -> {return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);}
+    }
+    // Double.equals without the boxes
+    return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+  }
 
-        throw new RuntimeError(expr.operator, "Operands must both be of the same type (numbers)");
-      }
-      case SLASH -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left / (double) right; }
-      case STAR -> {
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right; }
+  private static Object comparison(Token operator, Object left, Object right){
+    checkNumberOperands(operator, left, right);
+    switch (operator.type){
+      case GREATER -> {return (double) left > (double) right;}
+      case GREATER_EQUAL -> {return (double) left >= (double) right;}
+      case LESS -> {return (double) left < (double) right;}
+      case LESS_EQUAL -> {return (double) left <= (double) right;}
+      case BANG_EQUAL -> {return !isEqual(left, right);}
     }
-    return null;
+    return isEqual(left, right);
+  }
+
+  private double parkNonNumber(Object value){
+    hasNonNumber = true;
+    nonNumber = value;
+    return 0;
+  }
+
+  private Object takeNonNumber(){
+    Object value = nonNumber;
+    hasNonNumber = false;
+    nonNumber = null;
+    return value;
   }
 
   @Override
   public Object visitCallExpr(Expr.Call expr){
-    Object callee = evaluate(expr.callee);
+    if (expr.callee instanceof Expr.Get) return invoke((Expr.Get) expr.callee, expr);
+    return call(evaluate(expr.callee), expr);
+  }
+
+  // object.name(...): a method the site's cache finds runs with object as `this` in a
+  // frame the arguments go straight into, without the bound method a get would make
+  private Object invoke(Expr.Get get, Expr.Call expr){
+    Object object = evaluate(get.object);
+    LoxMethod method = get.cache.method(object, get.name);
+    List<Expr> args = expr.args;
+    if (!(method instanceof LoxFunction) || method.arity() != args.size()){
+      return call(get.cache.get(object, get.name), expr);
+    }
+
+    LoxFunction function = (LoxFunction) method;
+    Environment frame = function.enter();
+    for (int i = 0; i < args.size(); i++){
+      frame.slots[i] = evaluate(args.get(i));
+    }
+    enterCall(function, expr.paren);
+    return exitCall(function.run(this, frame, (LoxInstance) object));
+  }
+
+  private Object call(Object callee, Expr.Call expr){
+    List<Expr> args = expr.args;
+    CallCache cache = expr.cache;
 
-    List<Object> callArgs = new ArrayList<>();
-    for (Expr arg : expr.args){
+    // up to four arguments go straight to the fixed arity entry points
+    switch (args.size()){
+      case 0 -> {return exitCall(enterCall(cache.lookup(callee, expr.paren, 0), expr.paren).call0(this));}
+      case 1 -> {
+        Object a = evaluate(args.get(0));
+        return exitCall(enterCall(cache.lookup(callee, expr.paren, 1), expr.paren).call1(this, a));
+      }
+      case 2 -> {
+        Object a = evaluate(args.get(0));
+        Object b = evaluate(args.get(1));
+        return exitCall(enterCall(cache.lookup(callee, expr.paren, 2), expr.paren).call2(this, a, b));
+      }
+      case 3 -> {
+        Object a = evaluate(args.get(0));
+        Object b = evaluate(args.get(1));
+        Object c = evaluate(args.get(2));
+        return exitCall(enterCall(cache.lookup(callee, expr.paren, 3), expr.paren).call3(this, a, b, c));
+      }
+      case 4 -> {
+        Object a = evaluate(args.get(0));
+        Object b = evaluate(args.get(1));
+        Object c = evaluate(args.get(2));
+        Object d = evaluate(args.get(3));
+        return exitCall(enterCall(cache.lookup(callee, expr.paren, 4), expr.paren).call4(this, a, b, c, d));
+      }
+    }
+
+    List<Object> callArgs = new ArrayList<>(args.size());
+    for (Expr arg : args){
       callArgs.add(evaluate(arg));
     }
+    return exitCall(enterCall(cache.lookup(callee, expr.paren, callArgs.size()), expr.paren).call(this, callArgs));
+  }
 
+  // function, already checked by callable(), pushed onto the call stack for a call that
+  // is about to be made
+  LoxCallable enterCall(LoxCallable function, Token paren){
+    if (depth == maxDepth) throw new RuntimeError(paren, "Stack overflow.");
+    if (depth == callSites.length) callSites = Arrays.copyOf(callSites, depth * 2);
+    callSites[depth++] = paren;
+    return function;
+  }
+
+  // pops the call enterCall pushed once it returns result
+  Object exitCall(Object result){
+    depth--;
+    return result;
+  }
+
+  // the call site of every call in progress, innermost last, copied so it stays as it was
+  // once the calls return. For tools that want to show where a script is, like a
+  // profiler sampling it or a debugger stopped in it.
+  List<Token> callStack(){
+    return List.of(Arrays.copyOf(callSites, depth));
+  }
+
+  // A runtime error leaves the calls it unwound on the stack, so every run of a program
+  // starts from an empty one.
+  void clearCallStack(){
+    depth = 0;
+  }
+
+  // Java ran out of stack before maxDepth was reached, deep nesting inside the calls or a
+  // compiled function recursing can do that. It is reported like a Lox stack overflow at
+  // the innermost call.
+  void stackOverflow(StackOverflowError err){
+    if (depth == 0) throw err;
+    Lox.runtimeError(new RuntimeError(callSites[depth - 1], "Stack overflow."));
+  }
+
+  // callee once the arguments are evaluated, checked that it can take argCount of them
+  static LoxCallable callable(Object callee, Token paren, int argCount){
     if (!(callee instanceof LoxCallable)){
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+      throw new RuntimeError(paren, "Can only call functions and classes.");
     }
 
     LoxCallable function = (LoxCallable) callee;
 
-    if (callArgs.size() != function.arity()){
-      throw new RuntimeError(expr.paren, "Expected "
-        + function.arity() + " arguments but got " + callArgs.size() + ".");
+    if (argCount != function.arity()){
+      throw new RuntimeError(paren, "Expected "
+        + function.arity() + " arguments but got " + argCount + ".");
     }
-    return function.call(this, callArgs);
+    return function;
   }
 
   @Override
@@ -182,8 +399,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment);
-    environment.define(stmt.name.lexeme, function);
+    if (!stmt.captured){
+      define(stmt.name, stmt.slot, new LoxFunction(stmt, environment.capture(stmt.captures)));
+      return null;
+    }
+    // the cell goes in first so a function that calls itself can capture it
+    Environment.Cell cell = new Environment.Cell(null);
+    environment.define(stmt.slot, cell);
+    cell.value = new LoxFunction(stmt, environment.capture(stmt.captures));
     return null;
   }
 
@@ -197,11 +420,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     return null;
   }
 
-//  @Override
-//  public Void visitBreakStmt(Stmt.Break stmt){
-//    execute(stmt.skipToStmt);
-//    return null;
-//  }
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt){
+    jump = Jump.BREAK;
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt){
+    jump = Jump.CONTINUE;
+    return null;
+  }
 
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
@@ -213,8 +442,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
   @Override
   public Void visitReturnStmt(Stmt.Return stmt){
     Object value = null;
-    if (stmt.value != null) value = evaluate(stmt.value);
-    throw new Return(value);
+    if (stmt.tailCall){
+      Expr.Call call = (Expr.Call) stmt.value;
+      Object callee = evaluate(call.callee);
+      if (!(callee instanceof LoxFunction)) {
+        value = call(callee, call);
+      } else {
+        Object[] arguments = new Object[call.args.size()];
+        for (int i = 0; i < arguments.length; i++){
+          arguments[i] = evaluate(call.args.get(i));
+        }
+        tailCallee = (LoxFunction) call.cache.lookup(callee, call.paren, arguments.length);
+        tailArguments = arguments;
+      }
+    } else if (stmt.value != null) {
+      value = evaluate(stmt.value);
+    }
+    returnValue = value;
+    jump = Jump.RETURN;
+    return null;
   }
 
   @Override
@@ -224,39 +470,105 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
+    define(stmt.name, stmt.slot, stmt.captured ? new Environment.Cell(value) : value);
     return null;
   }
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt){
+    if (stmt.counter != Resolver.GLOBAL && environment.slots[stmt.counter] instanceof Double){
+      countedLoop(stmt);
+      return null;
+    }
     while(isTruthy(evaluate(stmt.condition))){
       execute(stmt.body);
+      if (jump != null){
+        if (jump == Jump.RETURN) break;
+        boolean exit = jump == Jump.BREAK;
+        jump = null;
+        if (exit) break;
+      }
+      if (stmt.increment != null) evaluate(stmt.increment);
     }
     return null;
   }
 
+  // A for loop the Resolver gave a counter: only the increment assigns it, so it is kept
+  // as a double here and boxed once per iteration for the body to read, and the condition
+  // and increment skip the visitor.
+  private void countedLoop(Stmt.While stmt){
+    Expr.Binary condition = (Expr.Binary) stmt.condition;
+    Object[] slots = environment.slots;
+    double counter = (double) slots[stmt.counter];
+    while (true){
+      double limit = evaluateNumber(condition.right);
+      if (hasNonNumber) checkNumberOperands(condition.operator, counter, takeNonNumber());
+      boolean more;
+      switch (condition.operator.type){
+        case LESS -> more = counter < limit;
+        case LESS_EQUAL -> more = counter <= limit;
+        case GREATER -> more = counter > limit;
+        default -> more = counter >= limit;
+      }
+      if (!more) return;
+
+      execute(stmt.body);
+      if (jump != null){
+        if (jump == Jump.RETURN) return;
+        boolean exit = jump == Jump.BREAK;
+        jump = null;
+        if (exit) return;
+      }
+      counter += stmt.step;
+      slots[stmt.counter] = counter;
+    }
+  }
+
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null){
-      environment.assignAt(distance, expr.name, value);
+    if (expr.depth == 0){
+      if (expr.captured){
+        ((Environment.Cell) environment.slots[expr.slot]).value = value;
+      } else {
+        environment.slots[expr.slot] = value;
+      }
+    } else if (expr.depth != Resolver.GLOBAL){
+      environment.upvalues[expr.upvalue].value = value;
     } else {
-      globals.assign(expr.name, value);
+      if (expr.global == null) expr.global = globals.global(expr.name);
+      expr.global.value = value;
     }
     return value;
   }
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt){
-    executeBlock(stmt.statements, new Environment(environment));
+    // a top level block captures nothing, globals are reached by name
+    executeBlock(stmt.statements, stmt.flat ? environment : new Environment(null, stmt.localCount));
     return null;
   }
 
   @Override
   public Void visitClassStmt(Stmt.Class stmt) {
+    // like a function, a captured class is in its cell before its methods capture it
+    Environment.Cell cell = null;
+    if (stmt.captured){
+      cell = new Environment.Cell(null);
+      environment.define(stmt.slot, cell);
+    }
+    Map<String, LoxMethod> methods = new HashMap<>();
+    for (Stmt.Function method : stmt.methods){
+      methods.put(method.name.lexeme, new LoxFunction(method, environment.capture(method.captures)));
+    }
+
+    LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
+    if (cell != null){
+      cell.value = klass;
+    } else {
+      define(stmt.name, stmt.slot, klass);
+    }
     return null;
   }
 
@@ -268,8 +580,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth){
-    locals.put(expr, depth);
+  private void define(Token name, int slot, Object value){
+    if (slot == Resolver.GLOBAL) {
+      environment.define(name.lexeme, value);
+    } else {
+      environment.define(slot, value);
+    }
   }
 
   void executeBlock(List<Stmt> statements, Environment env){
@@ -279,26 +595,93 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
       this.environment = env;
       for (Stmt statement : statements){
         execute(statement);
+        if (jump != null) break;
       }
     } finally {
       this.environment = prev;
     }
   }
 
-  private boolean isTruthy(Object object){
+  // the function the return statement that ended the last call tail called, null if it
+  // returned a value; its arguments are in takeTailArguments
+  LoxFunction takeTailCallee(){
+    LoxFunction callee = tailCallee;
+    if (callee != null){
+      tailCallee = null;
+      jump = null;
+    }
+    return callee;
+  }
+
+  Object[] takeTailArguments(){
+    Object[] arguments = tailArguments;
+    tailArguments = null;
+    return arguments;
+  }
+
+  // the value of the return statement that ended the last call, nil if none ran
+  Object takeReturnValue(){
+    Object value = returnValue;
+    jump = null;
+    returnValue = null;
+    return value;
+  }
+
+  static Object add(Token operator, Object left, Object right){
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+    if (left instanceof String && right instanceof String){
+      return left + (String) right;
+    }
+
+    if (left instanceof String && right instanceof Double){
+      return left + stringify(right);
+    }
+
+    if (left instanceof Double && right instanceof String) {
+      System.out.println(left);
+      System.out.println(right);
+      return stringify(left) + right;
+    }
+
+    throw new RuntimeError(operator, "Operands must both be of the same type (numbers)");
+  }
+
+  // Integral results in this range come from a shared cache instead of a fresh Double,
+  // which covers most loop counters and indexes. -0.0 is left out so it keeps its sign.
+  private static final Double[] SMALL_NUMBERS = new Double[1152];
+  private static final int SMALL_NUMBER_OFFSET = 128;
+
+  static {
+    for (int i = 0; i < SMALL_NUMBERS.length; i++){
+      SMALL_NUMBERS[i] = (double) (i - SMALL_NUMBER_OFFSET);
+    }
+  }
+
+  static Double box(double value){
+    int index = (int) value + SMALL_NUMBER_OFFSET;
+    if (index >= 0 && index < SMALL_NUMBERS.length && index - SMALL_NUMBER_OFFSET == value
+      && (value != 0.0 || Double.doubleToRawLongBits(value) == 0L)){
+      return SMALL_NUMBERS[index];
+    }
+    return value;
+  }
+
+  static boolean isTruthy(Object object){
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean) object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b){
+  static boolean isEqual(Object a, Object b){
     if (a == null && b == null) return true;
     if (a == null) return false;
 
     return a.equals(b);
   }
 
-  private String stringify(Object object){
+  static String stringify(Object object){
     if (object == null) return "nil";
 
     if (object instanceof Double){
@@ -312,12 +695,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     return object.toString();
   }
 
-  private void checkNumberOperand(Token operator, Object operand){
+  static void checkNumberOperand(Token operator, Object operand){
     if(operand instanceof Double) return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator, Object a, Object b){
+  static void checkNumberOperands(Token operator, Object a, Object b){
     if (a instanceof Double && b instanceof Double) {
      if (operator.type == SLASH && (double) b == 0.0) {
        throw new RuntimeError(operator, "This operand is not able to be used to divide by zero");
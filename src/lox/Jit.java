@@ -0,0 +1,490 @@
+package lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.JitClassWriter.*;
+
+// Compiles a hot LoxFunction into a static method on a hidden class so C2 can treat it
+// like any other Java code. Only numeric functions are accepted: parameters and locals
+// must be numbers, the only call allowed is a call to the function itself, every path has
+// to end in a return, and globals may be read but not written. That means nothing but the
+// function itself runs while compiled code is on the stack, so JitCode can check every
+// type assumption once on entry and deoptimize by simply running the call in the
+// Interpreter instead.
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // calls a LoxFunction takes before it is compiled, 0 turns compilation off
+  static int threshold = 1000;
+
+  private static final String METHOD = "fn";
+  private static final String RUNTIME = "lox/Jit";
+  // the compiled method's first parameter, the Interpreter whose call stack its calls to
+  // itself go on
+  private static final int INTERPRETER = 0;
+
+  // thrown while compiling when the function uses something outside the numeric subset
+  private static class Unsupported extends RuntimeException {
+    Unsupported(){
+      super(null, null, false, false);
+    }
+  }
+
+  private final Stmt.Function function;
+  private final String className;
+  private final String descriptor;
+  private final JitClassWriter code;
+  private final List<Map<String, Integer>> scopes = new ArrayList<>();
+  private final Map<String, Integer> globalIndex = new HashMap<>();
+  private final List<String> globalNames = new ArrayList<>();
+  private final List<Object> tokens = new ArrayList<>();
+  private int nextLocal = 1;
+  private int maxLocals = 1;
+  private boolean callsSelf = false;
+  // the start of the body, where a tail call to the function itself jumps back to
+  private final Label entry = new Label();
+  // where break and continue jump to in each loop around the statement being compiled
+  private final List<Label> breakTargets = new ArrayList<>();
+  private final List<Label> continueTargets = new ArrayList<>();
+
+  private Jit(Stmt.Function function){
+    this.function = function;
+    this.className = "lox/Jit$" + function.name.lexeme;
+    this.descriptor = "(Llox/Interpreter;" + "D".repeat(function.params.size()) + ")D";
+    this.code = new JitClassWriter(className);
+  }
+
+  // null when the function can't be compiled, it then stays in the Interpreter
+  static JitCode compile(Stmt.Function function){
+    // a method needs `this`, which is never a number
+    if (function.receiver != Resolver.GLOBAL) return null;
+    if (function.params.size() > 127 || !returns(function.body)) return null;
+
+    Jit jit = new Jit(function);
+    try {
+      return jit.compile();
+    } catch (Unsupported | JitClassWriter.TooLarge e) {
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private JitCode compile() throws ReflectiveOperationException {
+    Map<String, Integer> parameters = new HashMap<>();
+    for (Token param : function.params){
+      parameters.put(param.lexeme, allocate());
+    }
+    scopes.add(parameters);
+    code.place(entry);
+    compile(function.body);
+
+    // never reached since every path returns, but it keeps the verifier from seeing a
+    // branch target past the end of the method
+    code.op(DCONST_0, 2);
+    code.op(DRETURN, -2);
+
+    code.field("tokens", "[Ljava/lang/Object;");
+    code.field("globals", "[D");
+    byte[] bytes = code.toClassFile(METHOD, descriptor, maxLocals);
+
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+    Class<?> compiled = lookup.lookupClass();
+    double[] globals = new double[globalNames.size()];
+    lookup.findStaticVarHandle(compiled, "tokens", Object[].class).set(tokens.toArray());
+    lookup.findStaticVarHandle(compiled, "globals", double[].class).set(globals);
+
+    int arity = function.params.size();
+    MethodHandle entry = lookup.findStatic(compiled, METHOD,
+      MethodType.methodType(double.class, Collections.nCopies(arity, double.class))
+        .insertParameterTypes(0, Interpreter.class));
+    entry = entry.asType(MethodType.genericMethodType(arity + 1)).asSpreader(Object[].class, arity);
+
+    String self = callsSelf ? function.name.lexeme : null;
+    return new JitCode(entry, self, globalNames.toArray(new String[0]), globals);
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    code.op(DUP2, 2);
+    code.storeDouble(local(expr.depth, expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type){
+      case PLUS -> code.op(DADD, -2);
+      case MINUS -> code.op(DSUB, -2);
+      case STAR -> code.op(DMUL, -2);
+      case SLASH -> {
+        pushToken(expr.operator);
+        code.invokeStatic(RUNTIME, "divide", "(DDLjava/lang/Object;)D", -3);
+      }
+      default -> throw new Unsupported();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    code.loadObject(INTERPRETER);
+    compileSelfCallArgs(expr);
+    // on the Interpreter's call stack like an interpreted call, so --max-depth and a Java
+    // stack overflow end the recursion at the same call whether it is compiled or not
+    code.loadObject(INTERPRETER);
+    pushToken(expr.paren);
+    code.invokeStatic(RUNTIME, "enterCall", "(Llox/Interpreter;Ljava/lang/Object;)V", -2);
+    code.invokeStatic(className, METHOD, descriptor, 1 - 2 * expr.args.size());
+    code.loadObject(INTERPRETER);
+    code.invokeStatic(RUNTIME, "exitCall", "(Llox/Interpreter;)V", -1);
+    return null;
+  }
+
+  // pushes the arguments of a call, which has to be to the function itself
+  private void compileSelfCallArgs(Expr.Call expr){
+    if (!(expr.callee instanceof Expr.Variable)) throw new Unsupported();
+    Expr.Variable callee = (Expr.Variable) expr.callee;
+    if (callee.depth != Resolver.GLOBAL
+      || !callee.name.lexeme.equals(function.name.lexeme)
+      || expr.args.size() != function.params.size()){
+      throw new Unsupported();
+    }
+
+    for (Expr arg : expr.args){
+      compile(arg);
+    }
+    callsSelf = true;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (!(expr.value instanceof Double)) throw new Unsupported();
+    code.pushDouble((double) expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type != TokenType.MINUS) throw new Unsupported();
+    compile(expr.right);
+    code.op(DNEG, 0);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (expr.depth != Resolver.GLOBAL){
+      code.loadDouble(local(expr.depth, expr.name));
+      return null;
+    }
+
+    String name = expr.name.lexeme;
+    if (name.equals(function.name.lexeme)) throw new Unsupported();
+    Integer index = globalIndex.get(name);
+    if (index == null){
+      index = globalNames.size();
+      globalNames.add(name);
+      globalIndex.put(name, index);
+    }
+    code.getStatic("globals", "[D");
+    code.pushInt(index);
+    code.op(DALOAD, 0);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    int locals = nextLocal;
+    scopes.add(new HashMap<>());
+    compile(stmt.statements);
+    scopes.remove(scopes.size() - 1);
+    nextLocal = locals;
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    code.jump(GOTO, breakTargets.get(breakTargets.size() - 1));
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    code.jump(GOTO, continueTargets.get(continueTargets.size() - 1));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compileDiscarded(stmt.expression);
+    return null;
+  }
+
+  // an expression whose value nobody uses
+  private void compileDiscarded(Expr expr){
+    if (expr instanceof Expr.Assign){
+      Expr.Assign assign = (Expr.Assign) expr;
+      compile(assign.value);
+      code.storeDouble(local(assign.depth, assign.name));
+      return;
+    }
+
+    compile(expr);
+    code.op(POP2, -2);
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label elseBranch = new Label();
+    branch(stmt.condition, elseBranch, false);
+    compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null){
+      code.place(elseBranch);
+      return null;
+    }
+
+    Label end = new Label();
+    if (!returns(stmt.thenBranch)) code.jump(GOTO, end);
+    code.place(elseBranch);
+    compile(stmt.elseBranch);
+    code.place(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    code.invokeStatic(RUNTIME, "print", "(D)V", -2);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) throw new Unsupported();
+    if (stmt.tailCall){
+      // all arguments are evaluated before any parameter is overwritten
+      compileSelfCallArgs((Expr.Call) stmt.value);
+      for (int i = function.params.size() - 1; i >= 0; i--){
+        code.storeDouble(scopes.get(0).get(function.params.get(i).lexeme));
+      }
+      code.jump(GOTO, entry);
+      return null;
+    }
+    compile(stmt.value);
+    code.op(DRETURN, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) throw new Unsupported();
+    compile(stmt.initializer);
+    int local = allocate();
+    code.storeDouble(local);
+    scopes.get(scopes.size() - 1).put(stmt.name.lexeme, local);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Label top = new Label();
+    Label next = new Label();
+    Label exit = new Label();
+    code.place(top);
+    branch(stmt.condition, exit, false);
+
+    breakTargets.add(exit);
+    continueTargets.add(next);
+    compile(stmt.body);
+    breakTargets.remove(breakTargets.size() - 1);
+    continueTargets.remove(continueTargets.size() - 1);
+
+    code.place(next);
+    if (stmt.increment != null) compileDiscarded(stmt.increment);
+    code.jump(GOTO, top);
+    code.place(exit);
+    return null;
+  }
+
+  // Jumps to target when the truthiness of condition equals when. Comparisons only
+  // ever show up here, so they never need to be materialized as booleans.
+  private void branch(Expr condition, Label target, boolean when){
+    if (condition instanceof Expr.Grouping){
+      branch(((Expr.Grouping) condition).expression, target, when);
+    } else if (condition instanceof Expr.Unary
+      && ((Expr.Unary) condition).operator.type == TokenType.BANG){
+      branch(((Expr.Unary) condition).right, target, !when);
+    } else if (condition instanceof Expr.Logical){
+      Expr.Logical logical = (Expr.Logical) condition;
+      boolean or = logical.operator.type == TokenType.OR;
+      if (or == when){
+        branch(logical.left, target, when);
+        branch(logical.right, target, when);
+      } else {
+        Label skip = new Label();
+        branch(logical.left, skip, !when);
+        branch(logical.right, target, when);
+        code.place(skip);
+      }
+    } else if (condition instanceof Expr.Literal){
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value) == when) code.jump(GOTO, target);
+    } else if (condition instanceof Expr.Binary && compare((Expr.Binary) condition, target, when)){
+      return;
+    } else {
+      // anything else must be a number, and numbers are always truthy
+      compile(condition);
+      code.op(POP2, -2);
+      if (when) code.jump(GOTO, target);
+    }
+  }
+
+  private boolean compare(Expr.Binary expr, Label target, boolean when){
+    // dcmpg makes NaN compare greater and dcmpl makes it compare less, so any
+    // comparison against NaN ends up false just like it does in the Interpreter
+    int compare;
+    int jump;
+    switch (expr.operator.type){
+      case LESS -> {compare = DCMPG; jump = when ? IFLT : IFGE;}
+      case LESS_EQUAL -> {compare = DCMPG; jump = when ? IFLE : IFGT;}
+      case GREATER -> {compare = DCMPL; jump = when ? IFGT : IFLE;}
+      case GREATER_EQUAL -> {compare = DCMPL; jump = when ? IFGE : IFLT;}
+      case EQUAL_EQUAL -> {compare = -1; jump = when ? IFNE : IFEQ;}
+      case BANG_EQUAL -> {compare = -1; jump = when ? IFEQ : IFNE;}
+      default -> {return false;}
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+    if (compare == -1){
+      code.invokeStatic(RUNTIME, "equal", "(DD)Z", -3);
+    } else {
+      code.op(compare, -3);
+    }
+    code.jump(jump, target);
+    return true;
+  }
+
+  private int local(int depth, Token name){
+    // globals are written through the environment, and anything from an enclosing function
+    // is an upvalue in a cell. Blocks are flat and a function without nested functions has
+    // nothing captured, so everything of its own is a plain slot of its frame, at depth 0.
+    if (depth != 0) throw new Unsupported();
+    for (int i = scopes.size() - 1; i >= 0; i--){
+      Integer local = scopes.get(i).get(name.lexeme);
+      if (local != null) return local;
+    }
+    throw new Unsupported();
+  }
+
+  private int allocate(){
+    int local = nextLocal;
+    nextLocal += 2;
+    if (nextLocal > maxLocals) maxLocals = nextLocal;
+    return local;
+  }
+
+  private void pushToken(Token token){
+    code.getStatic("tokens", "[Ljava/lang/Object;");
+    code.pushInt(tokens.size());
+    code.op(AALOAD, -1);
+    tokens.add(token);
+  }
+
+  private void compile(Expr expr){
+    expr.accept(this);
+  }
+
+  private void compile(Stmt stmt){
+    stmt.accept(this);
+  }
+
+  private void compile(List<Stmt> statements){
+    for (Stmt statement : statements){
+      compile(statement);
+    }
+  }
+
+  private static boolean returns(List<Stmt> statements){
+    for (Stmt statement : statements){
+      if (returns(statement)) return true;
+    }
+    return false;
+  }
+
+  private static boolean returns(Stmt stmt){
+    if (stmt instanceof Stmt.Return) return true;
+    if (stmt instanceof Stmt.Block) return returns(((Stmt.Block) stmt).statements);
+    if (stmt instanceof Stmt.If){
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      return ifStmt.elseBranch != null && returns(ifStmt.thenBranch) && returns(ifStmt.elseBranch);
+    }
+    return false;
+  }
+
+  // called from compiled code
+
+  static double divide(double a, double b, Object operator){
+    if (b == 0.0) {
+      throw new RuntimeError((Token) operator, "This operand is not able to be used to divide by zero");
+    }
+    return a / b;
+  }
+
+  static boolean equal(double a, double b){
+    return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+  }
+
+  static void enterCall(Interpreter interpreter, Object paren){
+    interpreter.enterCall(null, (Token) paren);
+  }
+
+  static void exitCall(Interpreter interpreter){
+    interpreter.exitCall(null);
+  }
+
+  static void print(double value){
+    System.out.println(Interpreter.stringify(value));
+  }
+}
@@ -0,0 +1,303 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a class file assembler for Jit: one class with static fields and a single
+// static method. It targets class file version 49 so no StackMapTable is needed; the
+// JVM verifies it with the type-inferencing verifier instead.
+class JitClassWriter {
+  static final int DCONST_0 = 0x0e;
+  static final int DCONST_1 = 0x0f;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC2_W = 0x14;
+  static final int DLOAD = 0x18;
+  static final int ALOAD = 0x19;
+  static final int DALOAD = 0x31;
+  static final int AALOAD = 0x32;
+  static final int DSTORE = 0x39;
+  static final int POP2 = 0x58;
+  static final int DUP2 = 0x5c;
+  static final int DADD = 0x63;
+  static final int DSUB = 0x67;
+  static final int DMUL = 0x6b;
+  static final int DNEG = 0x77;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int GOTO = 0xa7;
+  static final int DRETURN = 0xaf;
+  static final int GETSTATIC = 0xb2;
+  static final int INVOKESTATIC = 0xb8;
+  static final int WIDE = 0xc4;
+
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+  private static final int MAX_CODE = 0x7fff;
+
+  static class Label {
+    private int position = -1;
+    private final List<Integer> fixups = new ArrayList<>();
+  }
+
+  // thrown when the method grows past what 16 bit branch offsets can reach
+  static class TooLarge extends RuntimeException {
+    TooLarge(){
+      super(null, null, false, false);
+    }
+  }
+
+  private final String className;
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final List<String[]> fields = new ArrayList<>();
+  private byte[] code = new byte[256];
+  private int length = 0;
+  private int stack = 0;
+  private int maxStack = 0;
+
+  JitClassWriter(String className){
+    this.className = className;
+  }
+
+  void field(String name, String descriptor){
+    fields.add(new String[]{name, descriptor});
+  }
+
+  // Operand stack bookkeeping is in JVM slots: a double counts as two.
+  void op(int opcode, int stackDelta){
+    emit(opcode);
+    adjust(stackDelta);
+  }
+
+  void loadObject(int local){
+    localOp(ALOAD, local);
+    adjust(1);
+  }
+
+  void loadDouble(int local){
+    localOp(DLOAD, local);
+    adjust(2);
+  }
+
+  void storeDouble(int local){
+    localOp(DSTORE, local);
+    adjust(-2);
+  }
+
+  void pushDouble(double value){
+    if (Double.doubleToRawLongBits(value) == 0L){
+      op(DCONST_0, 2);
+    } else if (value == 1.0){
+      op(DCONST_1, 2);
+    } else {
+      emit(LDC2_W);
+      emitShort(doubleConstant(value));
+      adjust(2);
+    }
+  }
+
+  void pushInt(int value){
+    if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+      emit(BIPUSH);
+      emit(value);
+    } else {
+      emit(SIPUSH);
+      emitShort(value);
+    }
+    adjust(1);
+  }
+
+  void getStatic(String name, String descriptor){
+    emit(GETSTATIC);
+    emitShort(memberRef(9, className, name, descriptor));
+    adjust(1);
+  }
+
+  void invokeStatic(String owner, String name, String descriptor, int stackDelta){
+    emit(INVOKESTATIC);
+    emitShort(memberRef(10, owner, name, descriptor));
+    adjust(stackDelta);
+  }
+
+  void jump(int opcode, Label target){
+    int at = length;
+    emit(opcode);
+    adjust(opcode == GOTO ? 0 : -1);
+    if (target.position >= 0){
+      emitShort(target.position - at);
+    } else {
+      target.fixups.add(at);
+      emitShort(0);
+    }
+  }
+
+  void place(Label label){
+    label.position = length;
+    for (int at : label.fixups){
+      int offset = length - at;
+      code[at + 1] = (byte) (offset >> 8);
+      code[at + 2] = (byte) offset;
+    }
+    label.fixups.clear();
+  }
+
+  byte[] toClassFile(String methodName, String methodDescriptor, int maxLocals){
+    try {
+      int thisClass = classRef(className);
+      int superClass = classRef("java/lang/Object");
+      int codeName = utf8("Code");
+      int methodNameIndex = utf8(methodName);
+      int methodDescriptorIndex = utf8(methodDescriptor);
+      int[][] fieldIndexes = new int[fields.size()][];
+      for (int i = 0; i < fields.size(); i++){
+        fieldIndexes[i] = new int[]{utf8(fields.get(i)[0]), utf8(fields.get(i)[1])};
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      poolOut.flush();
+      pool.writeTo(out);
+
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+
+      out.writeShort(fields.size());
+      for (int[] field : fieldIndexes){
+        out.writeShort(ACC_STATIC);
+        out.writeShort(field[0]);
+        out.writeShort(field[1]);
+        out.writeShort(0);
+      }
+
+      out.writeShort(1);
+      out.writeShort(ACC_STATIC);
+      out.writeShort(methodNameIndex);
+      out.writeShort(methodDescriptorIndex);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      out.writeShort(0);
+      out.writeShort(0);
+
+      out.writeShort(0);
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void localOp(int opcode, int local){
+    if (local <= 0xff){
+      emit(opcode);
+      emit(local);
+    } else {
+      emit(WIDE);
+      emit(opcode);
+      emitShort(local);
+    }
+  }
+
+  private void adjust(int delta){
+    stack += delta;
+    if (stack > maxStack) maxStack = stack;
+  }
+
+  private void emit(int b){
+    if (length == MAX_CODE) throw new TooLarge();
+    if (length == code.length){
+      byte[] grown = new byte[length * 2];
+      System.arraycopy(code, 0, grown, 0, length);
+      code = grown;
+    }
+    code[length++] = (byte) b;
+  }
+
+  private void emitShort(int value){
+    emit(value >> 8);
+    emit(value);
+  }
+
+  private int utf8(String value){
+    return constant("U" + value, () -> {
+      poolOut.writeByte(1);
+      poolOut.writeUTF(value);
+    }, 1);
+  }
+
+  private int classRef(String name){
+    int nameIndex = utf8(name);
+    return constant("C" + name, () -> {
+      poolOut.writeByte(7);
+      poolOut.writeShort(nameIndex);
+    }, 1);
+  }
+
+  private int doubleConstant(double value){
+    return constant("D" + Double.doubleToRawLongBits(value), () -> {
+      poolOut.writeByte(6);
+      poolOut.writeDouble(value);
+    }, 2);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor){
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+      poolOut.writeByte(12);
+      poolOut.writeShort(nameIndex);
+      poolOut.writeShort(descriptorIndex);
+    }, 1);
+    return constant(tag + owner + "." + name + ":" + descriptor, () -> {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(ownerIndex);
+      poolOut.writeShort(nameAndType);
+    }, 1);
+  }
+
+  private interface PoolEntry {
+    void write() throws IOException;
+  }
+
+  private int constant(String key, PoolEntry entry, int size){
+    Integer existing = poolIndex.get(key);
+    if (existing != null) return existing;
+
+    try {
+      entry.write();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    int index = poolCount;
+    poolCount += size;
+    poolIndex.put(key, index);
+    return index;
+  }
+}
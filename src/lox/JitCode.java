@@ -0,0 +1,53 @@
+package lox;
+
+import java.lang.invoke.MethodHandle;
+
+// A function compiled by Jit. Compiled code assumes every argument and every global it
+// reads is a number, and that calls to its own name still reach the same function; those
+// are checked here before anything runs, and if one doesn't hold the call deoptimizes by
+// returning DEOPT so LoxFunction runs it in the Interpreter.
+class JitCode {
+  static final Object DEOPT = new Object();
+  // guard failures tolerated before the compiled code is thrown away for good
+  private static final int MAX_DEOPTS = 16;
+
+  private final MethodHandle entry;
+  private final String self;
+  private final String[] globalNames;
+  private final double[] globals;
+  private int deopts = 0;
+
+  JitCode(MethodHandle entry, String self, String[] globalNames, double[] globals){
+    this.entry = entry;
+    this.self = self;
+    this.globalNames = globalNames;
+    this.globals = globals;
+  }
+
+  Object invoke(Interpreter interpreter, LoxFunction function, Environment environment, Object[] args){
+    for (Object arg : args){
+      if (!(arg instanceof Double)) return DEOPT;
+    }
+    if (self != null && environment.lookup(self) != function) return DEOPT;
+    // nothing else can run until the compiled call returns, so the globals it reads can't
+    // change underneath it
+    for (int i = 0; i < globalNames.length; i++){
+      Object value = environment.lookup(globalNames[i]);
+      if (!(value instanceof Double)) return DEOPT;
+      globals[i] = (double) value;
+    }
+
+    try {
+      return entry.invokeExact((Object) interpreter, args);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // true once the guards have failed often enough that compiling didn't pay off
+  boolean deoptimized(){
+    return ++deopts > MAX_DEOPTS;
+  }
+}
@@ -3,29 +3,99 @@ package lox;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
+  private enum Engine {
+    TREE,
+    CLOSURE,
+    VM
+  }
+
   private static final Interpreter interpreter = new Interpreter();
+  private static Engine engine = Engine.TREE;
+  private static VM vm;
+  private static NodeCompiler nodeCompiler;
+  private static boolean interactive = false;
+  private static boolean scanOnly = false;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
+  // largest --max-depth, keeps the VM's frame array for a runaway recursion in bounds
+  private static final int MAX_DEPTH = 1 << 20;
+
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    List<String> scripts = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        engine = parseEngine(arg.substring("--engine=".length()));
+      } else if (arg.equals("--no-jit")) {
+        Jit.threshold = 0;
+      } else if (arg.startsWith("--max-depth=")) {
+        Interpreter.maxDepth = parseDepth(arg.substring("--max-depth=".length()));
+      } else if (arg.equals("--call-stats")) {
+        CallCache.collectStats();
+      } else if (arg.equals("--scan-only")) {
+        scanOnly = true;
+      } else {
+        scripts.add(arg);
+      }
+    }
+    if (scripts.size() > 1) usage();
+
+    if (scripts.size() == 1) {
+      runFile(scripts.get(0));
     } else {
       runPrompt();
     }
   }
 
+  private static int parseDepth(String depth) {
+    try {
+      int maxDepth = Integer.parseInt(depth);
+      if (maxDepth > 0 && maxDepth <= MAX_DEPTH) return maxDepth;
+    } catch (NumberFormatException e) {
+      // falls through to the usage message
+    }
+    usage();
+    return 0;
+  }
+
+  private static Engine parseEngine(String name) {
+    switch (name) {
+      case "tree" -> {return Engine.TREE;}
+      case "closure" -> {return Engine.CLOSURE;}
+      case "vm" -> {return Engine.VM;}
+    }
+    usage();
+    return null;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=tree|closure|vm] [--no-jit] [--max-depth=n] [--call-stats] [--scan-only] [script]");
+    System.exit(64);
+  }
+
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    // mapped rather than read, the Scanner takes tokens straight from the file's pages
+    MappedByteBuffer source;
+    try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+      source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (scanOnly) {
+      scan(new Scanner(source));
+    } else {
+      List<Stmt> statements = ParallelParser.parse(source);
+      if (statements == null) {
+        run(new Scanner(source));
+      } else {
+        run(statements);
+      }
+    }
+    CallCache.report();
     if (hadError) System.exit(65);
     if (hadRuntimeError) System.exit(70);
   }
@@ -33,29 +103,60 @@ public class Lox {
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
+    interactive = true;
 
     for (;;) {
       System.out.println("> ");
       String line = reader.readLine();
       if (line == null) break;
-      run(line);
+      run(new Scanner(line));
       hadError = false;
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
+  // --scan-only: scans the whole script without parsing it and reports how long that took,
+  // the benchmark for the Scanner on its own
+  private static void scan(Scanner scanner) {
+    TokenBuffer tokens = scanner.tokens;
+    long start = System.nanoTime();
+    long count = 0;
+    while (true) {
+      // after the first block each one starts with the last token of the one before
+      int carried = tokens.size();
+      scanner.fill();
+      count += tokens.size() - carried;
+      if (tokens.type(tokens.size() - 1) == TokenType.EOF) break;
+      tokens.keepLast();
+    }
+    System.out.println("tokens: " + count);
+    System.out.println("elapsed: " + (System.nanoTime() - start) / 1e9);
+  }
 
+  private static void run(Scanner scanner) {
+    Parser parser = new Parser(scanner);
+    run(parser.parse());
+  }
+
+  private static void run(List<Stmt> statements) {
     if (hadError) return;
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
 
     if (hadError) return;
+    statements = new Optimizer(!interactive).optimize(statements);
+
+    if (engine == Engine.VM) {
+      CompiledFunction script = new Compiler().compile(statements);
+      if (hadError) return;
 
-    interpreter.interpret(statements);
+      if (vm == null) vm = new VM(interpreter);
+      vm.interpret(script);
+    } else if (engine == Engine.CLOSURE) {
+      if (nodeCompiler == null) nodeCompiler = new NodeCompiler(interpreter);
+      nodeCompiler.interpret(statements);
+    } else {
+      interpreter.interpret(statements);
+    }
   }
 
   // good idea to separate the code that generates the error from the code that reports them
@@ -64,6 +165,8 @@ public class Lox {
   }
 
   private static void report(int line, String where, String message) {
+    // the script gets parsed again in one piece, which reports it in order
+    if (ParallelParser.failPiece()) return;
     System.err.println("[line " + line +"] Error" + where + ": " + message);
     hadError = true;
   }
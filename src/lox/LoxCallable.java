@@ -1,8 +1,39 @@
 package lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 interface LoxCallable {
   int arity();
   Object call(Interpreter interpreter, List<Object> arguments);
+
+  // What a CallCache keeps for this callee. Callables that only differ in the instance
+  // they are bound to or the cells they captured share one, since they take the same
+  // arguments. A function returns what it was made from, the rest are their own key.
+  default Object callSiteKey(){
+    return this;
+  }
+
+  // Entry points for calls with a known argument count, so call sites don't have to
+  // collect the arguments first. A callable that binds parameters itself overrides them;
+  // the rest fall back to call with a list.
+  default Object call0(Interpreter interpreter){
+    return call(interpreter, List.of());
+  }
+
+  default Object call1(Interpreter interpreter, Object a){
+    return call(interpreter, Arrays.asList(a));
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b){
+    return call(interpreter, Arrays.asList(a, b));
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c){
+    return call(interpreter, Arrays.asList(a, b, c));
+  }
+
+  default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+    return call(interpreter, Arrays.asList(a, b, c, d));
+  }
 }
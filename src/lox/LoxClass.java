@@ -0,0 +1,91 @@
+package lox;
+
+import java.util.List;
+import java.util.Map;
+
+// A class at runtime. Calling it makes an instance and runs init, if there is one, on it.
+class LoxClass implements LoxCallable {
+  final String name;
+  private final Map<String, LoxMethod> methods;
+  LoxMethod initializer;
+  // the Shape of a new instance, every Shape its instances get is a transition from it
+  final Shape shape = new Shape(this);
+  // the most fields any instance has had
+  int fieldCount = 0;
+
+  LoxClass(String name, Map<String, LoxMethod> methods){
+    this.name = name;
+    this.methods = methods;
+    this.initializer = methods.get("init");
+  }
+
+  // the VM adds the methods one instruction at a time once it has made the class, before
+  // anything can look them up
+  void define(String name, LoxMethod method){
+    methods.put(name, method);
+    if (name.equals("init")) initializer = method;
+  }
+
+  // null when the class has no such method
+  LoxMethod findMethod(String name){
+    return methods.get(name);
+  }
+
+  @Override
+  public int arity() {
+    return initializer == null ? 0 : initializer.arity();
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call(interpreter, arguments);
+    return instance;
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call0(interpreter);
+    return instance;
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call1(interpreter, a);
+    return instance;
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call2(interpreter, a, b);
+    return instance;
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call3(interpreter, a, b, c);
+    return instance;
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) init(instance).call4(interpreter, a, b, c, d);
+    return instance;
+  }
+
+  // only the Interpreter and the closure engine call a class this way, their methods are
+  // LoxCallables; the VM calls a VMClosure initializer itself
+  private LoxCallable init(LoxInstance instance){
+    return (LoxCallable) initializer.bind(instance);
+  }
+
+  @Override
+  public String toString(){
+    return name;
+  }
+}
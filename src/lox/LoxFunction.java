@@ -2,12 +2,27 @@ package lox;
 
 import java.util.List;
 
-class LoxFunction implements LoxCallable {
+class LoxFunction implements LoxCallable, LoxMethod {
   private final Stmt.Function declaration;
-  private final Environment closure;
-  LoxFunction(Stmt.Function declaration, Environment closure){
+  // the cells of the variables it captured, all it keeps of where it was declared
+  private final Environment.Cell[] upvalues;
+  // `this` for a method that was bound to an instance, null otherwise
+  private final LoxInstance receiver;
+  private int calls = 0;
+  private JitCode compiled;
+  LoxFunction(Stmt.Function declaration, Environment.Cell[] upvalues){
+    this(declaration, upvalues, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Environment.Cell[] upvalues, LoxInstance receiver){
     this.declaration = declaration;
-    this.closure = closure;
+    this.upvalues = upvalues;
+    this.receiver = receiver;
+  }
+
+  @Override
+  public LoxFunction bind(LoxInstance receiver){
+    return new LoxFunction(declaration, upvalues, receiver);
   }
 
   @Override
@@ -15,19 +30,126 @@ class LoxFunction implements LoxCallable {
     return declaration.params.size();
   }
 
+  @Override
+  public Object callSiteKey(){
+    return declaration;
+  }
+
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments){
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++){
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    if (compiled != null) return callCompiled(interpreter, arguments.toArray());
+    Environment environment = enter();
+    for (int i = 0; i < arguments.size(); i++){
+      environment.slots[i] = arguments.get(i);
+    }
+    return run(interpreter, environment, receiver);
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter){
+    if (compiled != null) return callCompiled(interpreter, new Object[0]);
+    return run(interpreter, enter(), receiver);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a){
+    if (compiled != null) return callCompiled(interpreter, new Object[]{a});
+    Environment environment = enter();
+    environment.slots[0] = a;
+    return run(interpreter, environment, receiver);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b){
+    if (compiled != null) return callCompiled(interpreter, new Object[]{a, b});
+    Environment environment = enter();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    return run(interpreter, environment, receiver);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+    if (compiled != null) return callCompiled(interpreter, new Object[]{a, b, c});
+    Environment environment = enter();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    slots[2] = c;
+    return run(interpreter, environment, receiver);
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+    if (compiled != null) return callCompiled(interpreter, new Object[]{a, b, c, d});
+    Environment environment = enter();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    slots[2] = c;
+    slots[3] = d;
+    return run(interpreter, environment, receiver);
+  }
+
+  private Object callCompiled(Interpreter interpreter, Object[] arguments){
+    Object result = compiled.invoke(interpreter, this, interpreter.globals, arguments);
+    if (result != JitCode.DEOPT) return result;
+    if (compiled.deoptimized()) compiled = null;
+
+    Environment environment = new Environment(upvalues, declaration.localCount);
+    System.arraycopy(arguments, 0, environment.slots, 0, arguments.length);
+    return run(interpreter, environment, receiver);
+  }
+
+  // counts an interpreted call towards the JIT threshold and allocates its frame, the
+  // only allocation an interpreted call makes
+  Environment enter(){
+    count();
+    return new Environment(upvalues, declaration.localCount);
+  }
+
+  private void count(){
+    if (++calls == Jit.threshold){
+      compiled = Jit.compile(declaration);
     }
+  }
+
+  // Runs the body in a frame from enter() with the arguments in it, then every call it
+  // ends with in a return statement, one after the other in this loop rather than nested
+  // on the Java stack. A function that tail calls itself reuses the frame it is leaving:
+  // closures hold cells, never the frame. receiver is `this` for a method, a call site
+  // that found the method on an instance passes it here rather than binding it first.
+  Object run(Interpreter interpreter, Environment environment, LoxInstance receiver){
+    LoxFunction function = this;
+    while (true){
+      function.execute(interpreter, environment, receiver);
+      LoxFunction callee = interpreter.takeTailCallee();
+      if (callee == null){
+        Object value = interpreter.takeReturnValue();
+        return function.declaration.initializer ? receiver : value;
+      }
+
+      Object[] arguments = interpreter.takeTailArguments();
+      if (callee.compiled != null) return callee.callCompiled(interpreter, arguments);
+      if (callee == function){
+        callee.count();
+      } else {
+        environment = callee.enter();
+      }
+      System.arraycopy(arguments, 0, environment.slots, 0, arguments.length);
+      function = callee;
+      receiver = callee.receiver;
+    }
+  }
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue){
-      return returnValue.value;
+  private void execute(Interpreter interpreter, Environment environment, LoxInstance receiver){
+    Object[] slots = environment.slots;
+    if (declaration.receiver != Resolver.GLOBAL) slots[declaration.receiver] = receiver;
+    for (int param : declaration.capturedParams){
+      slots[param] = new Environment.Cell(slots[param]);
     }
-    return null;
+    interpreter.executeBlock(declaration.body, environment);
   }
 
   @Override
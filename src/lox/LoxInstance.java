@@ -0,0 +1,31 @@
+package lox;
+
+import java.util.Arrays;
+
+// An object of a LoxClass. Its fields live in an array, each at the index its Shape gives.
+class LoxInstance {
+  final LoxClass klass;
+  Shape shape;
+  Object[] fields;
+
+  LoxInstance(LoxClass klass){
+    this.klass = klass;
+    this.shape = klass.shape;
+    // room for as many fields as any instance of the class has had so far, so instances
+    // filled in by the same initializer never grow the array
+    this.fields = new Object[klass.fieldCount];
+  }
+
+  // moves the instance to next, a transition from its Shape that adds one property
+  void transition(Shape next){
+    if (next.size() > fields.length){
+      fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+    }
+    shape = next;
+  }
+
+  @Override
+  public String toString(){
+    return klass.name + " instance";
+  }
+}
@@ -0,0 +1,10 @@
+package lox;
+
+// A function declared in a class body: a LoxFunction, NodeFunction or VMClosure,
+// depending on the engine that ran the class declaration.
+interface LoxMethod {
+  int arity();
+
+  // the method with `this` bound to receiver, what a property get that finds it yields
+  Object bind(LoxInstance receiver);
+}
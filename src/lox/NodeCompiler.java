@@ -0,0 +1,222 @@
+package lox;
+
+import java.util.List;
+
+// Turns the resolved syntax tree into ExprNode/StmtNode trees once, then runs them.
+// This is the closure-compiled engine selected with --engine=closure.
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+  private final Interpreter interpreter;
+  private final Environment globals;
+
+  NodeCompiler(Interpreter interpreter){
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+  }
+
+  void interpret(List<Stmt> statements){
+    StmtNode[] program = new StmtNode[statements.size()];
+    for (int i = 0; i < program.length; i++){
+      Stmt statement = statements.get(i);
+      if (statement instanceof Stmt.Expression){
+        // like Interpreter.interpret, top level expression statements echo their value
+        program[i] = new StmtNode.Print(compile(((Stmt.Expression) statement).expression));
+      } else {
+        program[i] = compile(statement);
+      }
+    }
+
+    try {
+      StmtNode.executeAll(program, globals);
+    } catch (RuntimeError err){
+      Lox.runtimeError(err);
+    } catch (StackOverflowError err){
+      interpreter.stackOverflow(err);
+    }
+    interpreter.clearCallStack();
+  }
+
+  @Override
+  public ExprNode visitAssignExpr(Expr.Assign expr) {
+    ExprNode value = compile(expr.value);
+    if (expr.depth == Resolver.GLOBAL) return new ExprNode.GlobalSet(globals, expr.name, value);
+    if (expr.depth != 0) return new ExprNode.UpvalueSet(expr.upvalue, value);
+    if (expr.captured) return new ExprNode.CellSet(expr.slot, value);
+    return new ExprNode.LocalSet0(expr.slot, value);
+  }
+
+  @Override
+  public ExprNode visitBinaryExpr(Expr.Binary expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type){
+      case GREATER -> {return new ExprNode.Greater(operator, left, right);}
+      case GREATER_EQUAL -> {return new ExprNode.GreaterEqual(operator, left, right);}
+      case LESS -> {return new ExprNode.Less(operator, left, right);}
+      case LESS_EQUAL -> {return new ExprNode.LessEqual(operator, left, right);}
+      case BANG_EQUAL -> {return new ExprNode.NotEqual(operator, left, right);}
+      case EQUAL_EQUAL -> {return new ExprNode.Equal(operator, left, right);}
+      case MINUS -> {return new ExprNode.Subtract(operator, left, right);}
+      case PLUS -> {return new ExprNode.Add(operator, left, right);}
+      case SLASH -> {return new ExprNode.Divide(operator, left, right);}
+      case STAR -> {return new ExprNode.Multiply(operator, left, right);}
+    }
+    return new ExprNode.Discard(operator, left, right);
+  }
+
+  @Override
+  public ExprNode visitCallExpr(Expr.Call expr) {
+    ExprNode[] args = new ExprNode[expr.args.size()];
+    for (int i = 0; i < args.length; i++){
+      args[i] = compile(expr.args.get(i));
+    }
+    if (expr.callee instanceof Expr.Get){
+      Expr.Get get = (Expr.Get) expr.callee;
+      return new ExprNode.Invoke(interpreter, compile(get.object), get.name, expr.paren, args);
+    }
+    return new ExprNode.Call(interpreter, compile(expr.callee), expr.paren, args);
+  }
+
+  @Override
+  public ExprNode visitGetExpr(Expr.Get expr) {
+    return new ExprNode.GetProperty(compile(expr.object), expr.name);
+  }
+
+  @Override
+  public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public ExprNode visitLiteralExpr(Expr.Literal expr) {
+    return new ExprNode.Constant(expr.value);
+  }
+
+  @Override
+  public ExprNode visitLogicalExpr(Expr.Logical expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) return new ExprNode.Or(left, right);
+    return new ExprNode.And(left, right);
+  }
+
+  @Override
+  public ExprNode visitSetExpr(Expr.Set expr) {
+    return new ExprNode.SetProperty(compile(expr.object), expr.name, compile(expr.value));
+  }
+
+  @Override
+  public ExprNode visitUnaryExpr(Expr.Unary expr) {
+    ExprNode right = compile(expr.right);
+
+    switch (expr.operator.type){
+      case BANG -> {return new ExprNode.Not(right);}
+      case MINUS -> {return new ExprNode.Negate(expr.operator, right);}
+    }
+    return new ExprNode.Discard(expr.operator, right, new ExprNode.Constant(null));
+  }
+
+  @Override
+  public ExprNode visitVariableExpr(Expr.Variable expr) {
+    if (expr.depth == Resolver.GLOBAL) return new ExprNode.GlobalGet(globals, expr.name);
+    if (expr.depth != 0) return new ExprNode.UpvalueGet(expr.upvalue);
+    if (expr.captured) return new ExprNode.CellGet(expr.slot);
+    return new ExprNode.LocalGet0(expr.slot);
+  }
+
+  @Override
+  public StmtNode visitBlockStmt(Stmt.Block stmt) {
+    if (stmt.flat) return new StmtNode.Sequence(compile(stmt.statements));
+    return new StmtNode.Block(stmt.localCount, compile(stmt.statements));
+  }
+
+  @Override
+  public StmtNode visitBreakStmt(Stmt.Break stmt) {
+    return new StmtNode.Jump(StmtNode.BREAK);
+  }
+
+  @Override
+  public StmtNode visitClassStmt(Stmt.Class stmt) {
+    StmtNode[][] bodies = new StmtNode[stmt.methods.size()][];
+    for (int i = 0; i < bodies.length; i++){
+      bodies[i] = compile(stmt.methods.get(i).body);
+    }
+    return new StmtNode.Class(stmt, bodies);
+  }
+
+  @Override
+  public StmtNode visitContinueStmt(Stmt.Continue stmt) {
+    return new StmtNode.Jump(StmtNode.CONTINUE);
+  }
+
+  @Override
+  public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    return new StmtNode.Expression(compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    return new StmtNode.Function(stmt, compile(stmt.body));
+  }
+
+  @Override
+  public StmtNode visitIfStmt(Stmt.If stmt) {
+    StmtNode elseBranch = stmt.elseBranch == null ? null : compile(stmt.elseBranch);
+    return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public StmtNode visitPrintStmt(Stmt.Print stmt) {
+    return new StmtNode.Print(compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall){
+      Expr.Call call = (Expr.Call) stmt.value;
+      ExprNode[] args = new ExprNode[call.args.size()];
+      for (int i = 0; i < args.length; i++){
+        args[i] = compile(call.args.get(i));
+      }
+      return new StmtNode.TailReturn(interpreter, compile(call.callee), call.paren, args);
+    }
+    return new StmtNode.Return(stmt.value == null ? null : compile(stmt.value));
+  }
+
+  @Override
+  public StmtNode visitVarStmt(Stmt.Var stmt) {
+    ExprNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+    if (stmt.slot == Resolver.GLOBAL) return new StmtNode.DefineGlobal(stmt.name.lexeme, initializer);
+    if (stmt.captured) return new StmtNode.DefineCell(stmt.slot, initializer);
+    return new StmtNode.DefineLocal(stmt.slot, initializer);
+  }
+
+  @Override
+  public StmtNode visitWhileStmt(Stmt.While stmt) {
+    ExprNode increment = stmt.increment == null ? null : compile(stmt.increment);
+    StmtNode body = compile(stmt.body);
+    StmtNode.While loop = new StmtNode.While(compile(stmt.condition), body, increment);
+    if (stmt.counter == Resolver.GLOBAL) return loop;
+
+    Expr.Binary condition = (Expr.Binary) stmt.condition;
+    return new StmtNode.CountedLoop(stmt.counter, condition.operator, compile(condition.right),
+      stmt.step, body, loop);
+  }
+
+  private ExprNode compile(Expr expr){
+    return expr.accept(this);
+  }
+
+  private StmtNode compile(Stmt stmt){
+    return stmt.accept(this);
+  }
+
+  private StmtNode[] compile(List<Stmt> statements){
+    StmtNode[] nodes = new StmtNode[statements.size()];
+    for (int i = 0; i < nodes.length; i++){
+      nodes[i] = compile(statements.get(i));
+    }
+    return nodes;
+  }
+}
@@ -0,0 +1,147 @@
+package lox;
+
+import java.util.List;
+
+// A function declared under the closure-compiled engine: the body was compiled to
+// nodes once, each call only allocates the frame.
+class NodeFunction implements LoxCallable, LoxMethod {
+  private final String name;
+  private final int arity;
+  private final int localCount;
+  private final int[] capturedParams;
+  // the slot a method keeps `this` in, Resolver.GLOBAL for a plain function
+  private final int receiverSlot;
+  private final boolean initializer;
+  private final StmtNode[] body;
+  private final Environment.Cell[] upvalues;
+  // `this` for a method that was bound to an instance, null otherwise
+  private final LoxInstance receiver;
+
+  NodeFunction(Stmt.Function declaration, StmtNode[] body, Environment.Cell[] upvalues){
+    this(declaration.name.lexeme, declaration.params.size(), declaration.localCount, declaration.capturedParams,
+      declaration.receiver, declaration.initializer, body, upvalues, null);
+  }
+
+  private NodeFunction(String name, int arity, int localCount, int[] capturedParams, int receiverSlot,
+                       boolean initializer, StmtNode[] body, Environment.Cell[] upvalues, LoxInstance receiver){
+    this.name = name;
+    this.arity = arity;
+    this.localCount = localCount;
+    this.capturedParams = capturedParams;
+    this.receiverSlot = receiverSlot;
+    this.initializer = initializer;
+    this.body = body;
+    this.upvalues = upvalues;
+    this.receiver = receiver;
+  }
+
+  @Override
+  public NodeFunction bind(LoxInstance receiver){
+    return new NodeFunction(name, arity, localCount, capturedParams, receiverSlot, initializer, body, upvalues, receiver);
+  }
+
+  @Override
+  public int arity() {
+    return arity;
+  }
+
+  // the body is compiled once per declaration, so every closure and bound method made
+  // from it shares it
+  @Override
+  public Object callSiteKey(){
+    return body;
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments){
+    return call(arguments.toArray());
+  }
+
+  Object call(Object[] arguments){
+    Environment environment = frame();
+    System.arraycopy(arguments, 0, environment.slots, 0, arguments.length);
+    return run(environment, receiver);
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter){
+    return run(frame(), receiver);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a){
+    Environment environment = frame();
+    environment.slots[0] = a;
+    return run(environment, receiver);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b){
+    Environment environment = frame();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    return run(environment, receiver);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+    Environment environment = frame();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    slots[2] = c;
+    return run(environment, receiver);
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+    Environment environment = frame();
+    Object[] slots = environment.slots;
+    slots[0] = a;
+    slots[1] = b;
+    slots[2] = c;
+    slots[3] = d;
+    return run(environment, receiver);
+  }
+
+  // a frame for a call, for the caller to put the arguments in
+  Environment frame(){
+    return new Environment(upvalues, localCount);
+  }
+
+  // Runs the body, then every call it ends with in a return statement, in this loop
+  // rather than nested on the Java stack. A function that tail calls itself reuses the
+  // frame it is leaving: closures hold cells, never the frame. receiver is `this` for a
+  // method, see LoxFunction.run.
+  Object run(Environment environment, LoxInstance receiver){
+    NodeFunction function = this;
+    while (true){
+      Object result = function.execute(environment, receiver);
+      if (!(result instanceof StmtNode.TailCall)) return function.initializer ? receiver : result;
+
+      StmtNode.TailCall call = (StmtNode.TailCall) result;
+      if (call.function != function){
+        function = call.function;
+        environment = function.frame();
+      }
+      System.arraycopy(call.arguments, 0, environment.slots, 0, call.arguments.length);
+      receiver = function.receiver;
+    }
+  }
+
+  private Object execute(Environment environment, LoxInstance receiver){
+    Object[] slots = environment.slots;
+    if (receiverSlot != Resolver.GLOBAL) slots[receiverSlot] = receiver;
+    for (int param : capturedParams){
+      slots[param] = new Environment.Cell(slots[param]);
+    }
+    Object result = StmtNode.executeAll(body, environment);
+    return result == StmtNode.NORMAL ? null : result;
+  }
+
+  @Override
+  public String toString(){
+    return "<fn " + name + ">";
+  }
+}
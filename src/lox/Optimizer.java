@@ -0,0 +1,446 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// Runs between the Resolver and execution. Folds operators over literals, drops
+// groupings, picks the branch of an if/while whose condition is a literal, and replaces
+// reads of locals that are initialized with a literal and never assigned by the literal
+// itself. Anything that would raise a runtime error, or print the way `number + string`
+// does, is left for the engine so errors come out exactly as before.
+//
+// Calls to small functions are inlined too, see inline().
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // most nodes an inlined function's return expression may have
+  private static final int INLINE_BUDGET = 16;
+
+  // per scope, indexed by slot: the literal a local always holds or the function it
+  // always names, otherwise null
+  private final Stack<Object[]> scopes = new Stack<>();
+  // global functions declared so far that nothing in the program redefines or assigns
+  private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+  // functions being inlined right now, so mutually recursive helpers stop expanding
+  private final List<Stmt.Function> inlining = new ArrayList<>();
+  private final boolean inlineGlobals;
+
+  // a call inside a body being inlined: it has to inline as well or the whole inline is off
+  private static class InlineCall extends Expr.Call {
+    InlineCall(Expr callee, Token paren, List<Expr> args){
+      super(callee, paren, args);
+    }
+  }
+
+  private static class NotInlined extends RuntimeException {
+    NotInlined(){
+      super(null, null, false, false);
+    }
+  }
+
+  // inlineGlobals is off for the REPL, where a later line may redefine a global function
+  Optimizer(boolean inlineGlobals){
+    this.inlineGlobals = inlineGlobals;
+  }
+
+  List<Stmt> optimize(List<Stmt> statements){
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements){
+      Stmt result = optimize(statement);
+      if (result == null) continue;
+      // only statements written as expression statements echo their value at the top level
+      if (result instanceof Stmt.Expression && !(statement instanceof Stmt.Expression)){
+        result = block(List.of(result));
+      }
+      optimized.add(result);
+    }
+    return optimized;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    assign.upvalue = expr.upvalue;
+    assign.captured = expr.captured;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal){
+      Expr folded = fold(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+      if (folded != null) return folded;
+    }
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // null when folding would change what happens at runtime
+  private static Expr fold(Token operator, Object a, Object b){
+    boolean numbers = a instanceof Double && b instanceof Double;
+    switch (operator.type){
+      case PLUS -> {
+        if (numbers) return literal((double) a + (double) b);
+        if (a instanceof String && (b instanceof String || b instanceof Double)) {
+          return literal(Interpreter.add(operator, a, b));
+        }
+      }
+      case MINUS -> {if (numbers) return literal((double) a - (double) b);}
+      case STAR -> {if (numbers) return literal((double) a * (double) b);}
+      case SLASH -> {if (numbers && (double) b != 0.0) return literal((double) a / (double) b);}
+      case GREATER -> {if (numbers) return literal((double) a > (double) b);}
+      case GREATER_EQUAL -> {if (numbers) return literal((double) a >= (double) b);}
+      case LESS -> {if (numbers) return literal((double) a < (double) b);}
+      case LESS_EQUAL -> {if (numbers) return literal((double) a <= (double) b);}
+      case EQUAL_EQUAL, BANG_EQUAL -> {
+        if (numbers || (a instanceof String && b instanceof String)){
+          boolean equal = Interpreter.isEqual(a, b);
+          return literal(operator.type == TokenType.EQUAL_EQUAL ? equal : !equal);
+        }
+      }
+      // operators the Interpreter has no case for evaluate to nil
+      default -> {return literal(null);}
+    }
+    return null;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    List<Expr> args = new ArrayList<>();
+    for (Expr arg : expr.args){
+      args.add(optimize(arg));
+    }
+
+    Stmt.Function function = target(expr.callee);
+    if (function != null && function.params.size() == args.size() && !inlining.contains(function)){
+      Expr inlined = inline(function, args);
+      if (inlined != null) return inlined;
+    }
+    if (expr instanceof InlineCall) throw new NotInlined();
+    return new Expr.Call(optimize(expr.callee), expr.paren, args);
+  }
+
+  // The function a callee always refers to at this point: a local function that is never
+  // assigned, or a global one declared once, never assigned, and declared before this
+  // call site so it is defined by the time the call can run.
+  private Stmt.Function target(Expr callee){
+    if (!(callee instanceof Expr.Variable)) return null;
+    Expr.Variable variable = (Expr.Variable) callee;
+    if (variable.depth == Resolver.GLOBAL) return globalFunctions.get(variable.name.lexeme);
+
+    Object local = scopes.get(scopes.size() - 1 - variable.depth)[variable.slot];
+    return local instanceof Stmt.Function ? (Stmt.Function) local : null;
+  }
+
+  // A function whose body is a single `return expr;` where expr only uses its parameters,
+  // literals, operators and calls that inline in turn is replaced by expr with the
+  // arguments substituted. Each argument has to be a literal or a local read: neither can
+  // fail or have side effects, so reading one zero, one or several times in whatever
+  // order expr needs is the same as evaluating it once up front. Every token in expr is
+  // the function's own, so runtime errors still report the line inside the function.
+  private Expr inline(Stmt.Function function, List<Expr> args){
+    if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return null;
+    Expr body = ((Stmt.Return) function.body.get(0)).value;
+    if (body == null || size(body) > INLINE_BUDGET) return null;
+    for (Expr arg : args){
+      if (!(arg instanceof Expr.Literal || arg instanceof Expr.Variable && ((Expr.Variable) arg).depth != Resolver.GLOBAL)){
+        return null;
+      }
+    }
+
+    Expr substituted = substitute(body, args);
+    if (substituted == null) return null;
+    inlining.add(function);
+    try {
+      return optimize(substituted);
+    } catch (NotInlined e) {
+      return null;
+    } finally {
+      inlining.remove(inlining.size() - 1);
+    }
+  }
+
+  // body with parameter reads replaced by args, null if it uses anything else that
+  // depends on the function's environment
+  private static Expr substitute(Expr body, List<Expr> args){
+    if (body instanceof Expr.Literal) return body;
+    if (body instanceof Expr.Variable){
+      Expr.Variable variable = (Expr.Variable) body;
+      // the body is one return statement, so the function's own scope holds only params
+      if (variable.depth == 0) return args.get(variable.slot);
+      return null;
+    }
+    if (body instanceof Expr.Grouping){
+      return substitute(((Expr.Grouping) body).expression, args);
+    }
+    if (body instanceof Expr.Unary){
+      Expr.Unary unary = (Expr.Unary) body;
+      Expr right = substitute(unary.right, args);
+      return right == null ? null : new Expr.Unary(unary.operator, right);
+    }
+    if (body instanceof Expr.Binary){
+      Expr.Binary binary = (Expr.Binary) body;
+      Expr left = substitute(binary.left, args);
+      Expr right = substitute(binary.right, args);
+      return left == null || right == null ? null : new Expr.Binary(left, binary.operator, right);
+    }
+    if (body instanceof Expr.Logical){
+      Expr.Logical logical = (Expr.Logical) body;
+      Expr left = substitute(logical.left, args);
+      Expr right = substitute(logical.right, args);
+      return left == null || right == null ? null : new Expr.Logical(left, logical.operator, right);
+    }
+    if (body instanceof Expr.Call){
+      // only calls to global functions, optimize() inlines them or the whole inline fails
+      Expr.Call call = (Expr.Call) body;
+      if (!(call.callee instanceof Expr.Variable) || ((Expr.Variable) call.callee).depth != Resolver.GLOBAL){
+        return null;
+      }
+      List<Expr> callArgs = new ArrayList<>();
+      for (Expr arg : call.args){
+        Expr substituted = substitute(arg, args);
+        if (substituted == null) return null;
+        callArgs.add(substituted);
+      }
+      return new InlineCall(call.callee, call.paren, callArgs);
+    }
+    return null;
+  }
+
+  private static int size(Expr expr){
+    if (expr instanceof Expr.Grouping) return size(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) return 1 + size(((Expr.Unary) expr).right);
+    if (expr instanceof Expr.Binary) return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+    if (expr instanceof Expr.Logical) return 1 + size(((Expr.Logical) expr).left) + size(((Expr.Logical) expr).right);
+    if (expr instanceof Expr.Call){
+      int size = 1;
+      for (Expr arg : ((Expr.Call) expr).args){
+        size += size(arg);
+      }
+      return size;
+    }
+    return 1;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    return new Expr.Get(optimize(expr.object), expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+    if (left instanceof Expr.Literal){
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+      if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+      return truthy ? right : left;
+    }
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    return new Expr.Set(optimize(expr.object), expr.name, optimize(expr.value));
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (right instanceof Expr.Literal){
+      Object value = ((Expr.Literal) right).value;
+      switch (expr.operator.type){
+        case BANG -> {return literal(!Interpreter.isTruthy(value));}
+        case MINUS -> {if (value instanceof Double) return literal(-(double) value);}
+        default -> {return literal(null);}
+      }
+    }
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    if (expr.depth == Resolver.GLOBAL) return expr;
+    Object local = scopes.get(scopes.size() - 1 - expr.depth)[expr.slot];
+    return local instanceof Expr.Literal ? (Expr.Literal) local : expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    // a flat block's locals are in the frame around it
+    if (!stmt.flat) scopes.push(new Object[stmt.localCount]);
+    List<Stmt> statements = optimizeAll(stmt.statements);
+    if (!stmt.flat) scopes.pop();
+
+    Stmt.Block block = new Stmt.Block(statements);
+    block.localCount = stmt.localCount;
+    block.flat = stmt.flat;
+    return block;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>();
+    for (Stmt.Function method : stmt.methods){
+      methods.add(optimizeFunction(method));
+    }
+    Stmt.Class klass = new Stmt.Class(stmt.name, methods);
+    klass.slot = stmt.slot;
+    klass.captured = stmt.captured;
+    return klass;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(optimize(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function function = optimizeFunction(stmt);
+
+    // only now, so a function never inlines into its own body
+    if (!stmt.assigned){
+      if (stmt.slot != Resolver.GLOBAL){
+        scopes.peek()[stmt.slot] = function;
+      } else if (inlineGlobals && scopes.isEmpty()){
+        globalFunctions.put(stmt.name.lexeme, function);
+      }
+    }
+    return function;
+  }
+
+  // the function with its body optimized; a method goes through here too but, unlike a
+  // function declaration, is never recorded as a call target
+  private Stmt.Function optimizeFunction(Stmt.Function stmt){
+    scopes.push(new Object[stmt.localCount]);
+    List<Stmt> body = optimizeAll(stmt.body);
+    scopes.pop();
+
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+    function.slot = stmt.slot;
+    function.localCount = stmt.localCount;
+    function.assigned = stmt.assigned;
+    function.captured = stmt.captured;
+    function.captures = stmt.captures;
+    function.capturedParams = stmt.capturedParams;
+    function.receiver = stmt.receiver;
+    function.initializer = stmt.initializer;
+    return function;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal){
+      Stmt branch = Interpreter.isTruthy(((Expr.Literal) condition).value) ? stmt.thenBranch : stmt.elseBranch;
+      return branch == null ? null : optimize(branch);
+    }
+
+    Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBranch(stmt.elseBranch);
+    return new Stmt.If(condition, optimizeBranch(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(optimize(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Stmt.Return result = new Stmt.Return(stmt.keyword, optimize(stmt.value));
+    // an inlined call is no longer a call
+    result.tailCall = stmt.tailCall && result.value instanceof Expr.Call;
+    return result;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+    if (stmt.slot != Resolver.GLOBAL && !stmt.assigned && initializer instanceof Expr.Literal){
+      scopes.peek()[stmt.slot] = initializer;
+    }
+
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.slot = stmt.slot;
+    var.assigned = stmt.assigned;
+    var.captured = stmt.captured;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)){
+      return null;
+    }
+    Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+    Stmt.While loop = new Stmt.While(condition, optimizeBranch(stmt.body), increment);
+    // the counter is assigned, so neither its reads nor the step get folded away
+    loop.counter = stmt.counter;
+    loop.step = stmt.step;
+    return loop;
+  }
+
+  private Expr optimize(Expr expr){
+    return expr.accept(this);
+  }
+
+  private Stmt optimize(Stmt stmt){
+    return stmt.accept(this);
+  }
+
+  private List<Stmt> optimizeAll(List<Stmt> statements){
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements){
+      Stmt result = optimize(statement);
+      if (result != null) optimized.add(result);
+    }
+    return optimized;
+  }
+
+  // a statement that has to stay a statement even when it optimizes away
+  private Stmt optimizeBranch(Stmt stmt){
+    Stmt result = optimize(stmt);
+    return result == null ? block(List.of()) : result;
+  }
+
+  private static Stmt.Block block(List<Stmt> statements){
+    Stmt.Block block = new Stmt.Block(statements);
+    block.localCount = 0;
+    block.flat = true;
+    return block;
+  }
+
+  private static Expr.Literal literal(Object value){
+    return new Expr.Literal(value);
+  }
+}
@@ -0,0 +1,165 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Scans and parses a big script in pieces on the common ForkJoinPool. A pre-scan that only
+// follows strings, comments and bracket depth finds where top-level statements start,
+// each piece gets its own Scanner starting on its first line, and the pieces' statements
+// are put back together in source order. A piece with an error sends the whole script
+// back through one Parser, so errors come out in order and are recovered from exactly as
+// before.
+final class ParallelParser {
+  // smaller scripts parse faster than the pre-scan and the threads cost
+  private static final int MIN_SIZE = 4 << 20;
+  private static final int MIN_PIECE = 1 << 20;
+
+  // the piece being parsed on this thread, its errors mark it failed instead of printing
+  private static final ThreadLocal<Piece> parsing = new ThreadLocal<>();
+
+  private static final class Piece implements Callable<Void> {
+    final ByteBuffer source;
+    final int from;
+    final int to;
+    final int line;
+    List<Stmt> statements;
+    boolean failed = false;
+
+    Piece(ByteBuffer source, int from, int to, int line){
+      this.source = source;
+      this.from = from;
+      this.to = to;
+      this.line = line;
+    }
+
+    @Override
+    public Void call(){
+      parsing.set(this);
+      try {
+        statements = new Parser(new Scanner(source, from, to, line)).parse();
+      } catch (StackOverflowError error) {
+        // nesting deeper than a pool thread's stack holds, parsed again in one piece
+        failed = true;
+      } finally {
+        parsing.remove();
+      }
+      return null;
+    }
+  }
+
+  // The script's statements, or null when it is too small to split or a piece has an
+  // error, then it has to be parsed in one piece.
+  static List<Stmt> parse(ByteBuffer source){
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    if (source.limit() < MIN_SIZE || pool.getParallelism() < 2) return null;
+
+    int pieceSize = Math.max(MIN_PIECE, source.limit() / (pool.getParallelism() * 4));
+    List<Piece> pieces = split(source, pieceSize);
+    if (pieces.size() < 2) return null;
+
+    List<Stmt> statements = new ArrayList<>();
+    for (Future<Void> result : pool.invokeAll(pieces)){
+      try {
+        result.get();
+      } catch (InterruptedException | ExecutionException e) {
+        return null;
+      }
+    }
+    for (Piece piece : pieces){
+      if (piece.failed) return null;
+      statements.addAll(piece.statements);
+    }
+    return statements;
+  }
+
+  // true when this thread is parsing a piece, which now has an error
+  static boolean failPiece(){
+    Piece piece = parsing.get();
+    if (piece == null) return false;
+    piece.failed = true;
+    return true;
+  }
+
+  // Cuts the source into pieces of at least pieceSize bytes, each one ending right after a
+  // ; or } outside any braces and parens. Strings and comments are skipped the way the
+  // Scanner skips them, so brackets and semicolons in them don't count, and lines are
+  // counted so each piece knows the one it starts on.
+  private static List<Piece> split(ByteBuffer source, int pieceSize){
+    List<Piece> pieces = new ArrayList<>();
+    int length = source.limit();
+    int from = 0;
+    int fromLine = 1;
+    int line = 1;
+    int depth = 0;
+    // the last significant byte was a ; or } that ends a top-level statement
+    boolean ended = false;
+
+    int i = 0;
+    while (i < length){
+      byte c = source.get(i);
+      if (c == '\n'){
+        line++;
+        i++;
+        continue;
+      }
+      if (c == ' ' || c == '\r' || c == '\t'){
+        i++;
+        continue;
+      }
+      if (c == '/' && i + 1 < length && source.get(i + 1) == '/'){
+        while (i < length && source.get(i) != '\n') i++;
+        continue;
+      }
+      if (c == '/' && i + 1 < length && source.get(i + 1) == '*'){
+        i += 2;
+        while (i < length && !(source.get(i) == '*' && i + 1 < length && source.get(i + 1) == '/')){
+          if (source.get(i) == '\n') line++;
+          i++;
+        }
+        i += 2;
+        continue;
+      }
+
+      // an else belongs to the if statement before it
+      if (ended && i - from >= pieceSize && !isElse(source, i)){
+        pieces.add(new Piece(source, from, i, fromLine));
+        from = i;
+        fromLine = line;
+      }
+      ended = false;
+
+      switch (c) {
+        case '"' -> {
+          i++;
+          while (i < length && source.get(i) != '"'){
+            if (source.get(i) == '\n') line++;
+            i++;
+          }
+        }
+        case '{', '(' -> depth++;
+        case ')' -> depth--;
+        case '}' -> ended = --depth == 0;
+        case ';' -> ended = depth == 0;
+        default -> {}
+      }
+      i++;
+    }
+    pieces.add(new Piece(source, from, length, fromLine));
+    return pieces;
+  }
+
+  private static boolean isElse(ByteBuffer source, int i){
+    if (i + 4 > source.limit()) return false;
+    if (source.get(i) != 'e' || source.get(i + 1) != 'l' || source.get(i + 2) != 's' ||
+        source.get(i + 3) != 'e') return false;
+    if (i + 4 == source.limit()) return true;
+    byte next = source.get(i + 4);
+    return !(next == '_' || (next >= 'a' && next <= 'z') || (next >= 'A' && next <= 'Z') ||
+        (next >= '0' && next <= '9'));
+  }
+}
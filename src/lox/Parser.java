@@ -8,7 +8,8 @@ import static lox.TokenType.*;
 
 class Parser {
   private static class ParseError extends RuntimeException {}
-  private final List<Token> tokens;
+  private final Scanner scanner;
+  private final TokenBuffer tokens;
 
   // looking for a way to consolidate all the extra functions that repeat logic
   private final List<TokenType> binaryTokenTypes = Arrays.asList(
@@ -26,10 +27,19 @@ class Parser {
     STAR,
     BANG
   );
+  // index in tokens of the token being looked at, the one before it is all the lookbehind
+  // the grammar needs, so a new block only has to keep that one
   private int current = 0;
+  // The Scanner reports its errors as it scans, which is only ever a block ahead of the
+  // Parser. The Parser's own wait here until the whole source is scanned, so they all come
+  // after the scan errors, as they did when the source was scanned before parsing.
+  private final List<Token> errorTokens = new ArrayList<>();
+  private final List<String> errorMessages = new ArrayList<>();
 
-  Parser(List<Token> tokens){
-    this.tokens = tokens;
+  Parser(Scanner scanner){
+    this.scanner = scanner;
+    this.tokens = scanner.tokens;
+    scanner.fill();
   }
 
   List<Stmt> parse() {
@@ -37,6 +47,9 @@ class Parser {
     while (!isAtEnd()) {
       statements.add(declaration());
     }
+    for (int i = 0; i < errorTokens.size(); i++){
+      Lox.error(errorTokens.get(i), errorMessages.get(i));
+    }
     return statements;
   }
 
@@ -49,7 +62,7 @@ class Parser {
       if (match(CLASS)) return classDeclaration();
       if (match(FUN)) return function("function");
       if (match(VAR)) return varDeclaration();
-      if (peek().type == NUMBER || peek().type == STRING) return expressionStatement();
+      if (check(NUMBER) || check(STRING)) return expressionStatement();
       return statement();
     } catch (ParseError err){
       synchronize();
@@ -74,7 +87,8 @@ class Parser {
   private Stmt statement(){
     if (match(FOR)) return forStatement();
     if (match(IF)) return ifStatement();
-//    if (match(BREAK)) return breakStatement();
+    if (match(BREAK)) return breakStatement();
+    if (match(CONTINUE)) return continueStatement();
     if (match(PRINT)) return printStatement();
     if (match(RETURN)) return returnStatement();
     if (match(WHILE)) return whileStatement();
@@ -98,12 +112,17 @@ class Parser {
     return new Stmt.If(cond, thenBranch, elseBranch);
   }
 
-//  private Stmt breakStatement(){
-//    Token prev = previous();
-//    consume(SEMICOLON, "Expected ';' after break.");
-//
-//    return new Stmt.Break(prev, null);
-//  }
+  private Stmt breakStatement(){
+    Token keyword = previous();
+    consume(SEMICOLON, "Expect ';' after 'break'.");
+    return new Stmt.Break(keyword);
+  }
+
+  private Stmt continueStatement(){
+    Token keyword = previous();
+    consume(SEMICOLON, "Expect ';' after 'continue'.");
+    return new Stmt.Continue(keyword);
+  }
 
   private Stmt whileStatement(){
     consume(LEFT_PAREN, "Expect '(' after 'while'.");
@@ -111,7 +130,7 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after condition");
     Stmt body = statement();
 
-    return new Stmt.While(cond, body);
+    return new Stmt.While(cond, body, null);
   }
 
   private Stmt forStatement(){
@@ -139,12 +158,10 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after for clause.");
     Stmt body = statement();
 
-    if (increment != null) {
-      body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-    }
-
+    // the increment stays on the loop rather than going after the body, so a continue in
+    // the body still runs it
     if (cond == null) cond = new Expr.Literal(true);
-    body = new Stmt.While(cond, body);
+    body = new Stmt.While(cond, body, increment);
 
     if (initializer != null) {
       body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -210,20 +227,10 @@ class Parser {
 
   private List<Stmt> block(){
     List<Stmt> statements = new ArrayList<>();
-//    int breakIdx = -1;
     while (!check(RIGHT_BRACE) && !isAtEnd()) {
-//      if (check(BREAK)){
-//        breakIdx = statements.size();
-//      }
       statements.add(declaration());
     }
     consume(RIGHT_BRACE, "Expect '}' after block");
-//    if (breakIdx > 0){
-//      //  Update existing break to last statement
-//      Token breakToken = ((Stmt.Break) statements.get(breakIdx)).name;
-//      Stmt.Break updatedBreak = new Stmt.Break(breakToken, statements.get(statements.size() - 1));
-//      statements.set(breakIdx, updatedBreak);
-//    }
     return statements;
   }
 
@@ -234,9 +241,12 @@ class Parser {
       Token equals = previous();
       Expr value = assignment();
 
-      if (expr  instanceof Expr.Variable){
+      if (expr instanceof Expr.Variable && ((Expr.Variable) expr).name.type != THIS){
         Token name = ((Expr.Variable) expr).name;
         return new Expr.Assign(name, value);
+      } else if (expr instanceof Expr.Get){
+        Expr.Get get = (Expr.Get) expr;
+        return new Expr.Set(get.object, get.name, value);
       }
 
       error(equals, "Invalid assignment target.");
@@ -360,6 +370,9 @@ class Parser {
     while (true){
       if (match(LEFT_PAREN)){
         expr = finishCall(expr);
+      } else if (match(DOT)){
+        Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+        expr = new Expr.Get(expr, name);
       } else {
         break;
       }
@@ -378,7 +391,8 @@ class Parser {
       return new Expr.Literal(previous().literal);
     }
 
-    if (match(IDENTIFIER)){
+    // `this` resolves like a local, the one a method keeps its receiver in
+    if (match(IDENTIFIER, THIS)){
       return new Expr.Variable(previous());
     }
 
@@ -408,28 +422,36 @@ class Parser {
 
   private boolean check(TokenType type){
     if (isAtEnd()) return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
   private Token advance(){
-    if (!isAtEnd()) current++;
+    if (!isAtEnd()){
+      current++;
+      if (current == tokens.size()){
+        tokens.keepLast();
+        scanner.fill();
+        current = 1;
+      }
+    }
     return previous();
   }
 
   private boolean isAtEnd(){
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
   private Token peek(){
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous(){
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    errorTokens.add(token);
+    errorMessages.add(message);
     return new ParseError();
   }
 
@@ -437,10 +459,10 @@ class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
+      if (tokens.type(current - 1) == SEMICOLON) return;
 
-      switch (peek().type){
-        case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, BREAK -> {}
+      switch (tokens.type(current)){
+        case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, BREAK, CONTINUE -> {}
         case RETURN -> {return;}
       }
       advance();
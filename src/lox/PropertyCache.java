@@ -0,0 +1,101 @@
+package lox;
+
+// Inline cache for one property get, set or method call in the source. It remembers the
+// Shapes of the instances seen there, up to ENTRIES of them, and for each one where the
+// property was: a field offset, or the method of the Shape's class. An access whose Shape
+// is cached costs a few reference compares. A site that sees more Shapes than that is
+// megamorphic and looks the rest up in the Shape every time.
+final class PropertyCache {
+  private static final int ENTRIES = 4;
+
+  private final Shape[] shapes = new Shape[ENTRIES];
+  // the field's offset, or -1 when the property is a method
+  private final int[] offsets = new int[ENTRIES];
+  private final LoxMethod[] methods = new LoxMethod[ENTRIES];
+  // for a set that adds the property, the Shape the instance moves to, otherwise null
+  private final Shape[] transitions = new Shape[ENTRIES];
+  private int size = 0;
+
+  Object get(Object object, Token name){
+    LoxInstance instance = instance(object, name, "Only instances have properties.");
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++){
+      if (shapes[i] == shape){
+        int offset = offsets[i];
+        return offset >= 0 ? instance.fields[offset] : methods[i].bind(instance);
+      }
+    }
+
+    int offset = shape.offset(name.lexeme);
+    if (offset >= 0){
+      remember(shape, offset, null, null);
+      return instance.fields[offset];
+    }
+    LoxMethod method = findMethod(shape, name);
+    remember(shape, -1, method, null);
+    return method.bind(instance);
+  }
+
+  // For a call object.name(...), the method to run with object as `this` without binding
+  // it first. Null when name is a field, the call then goes through get like any other
+  // callee.
+  LoxMethod method(Object object, Token name){
+    Shape shape = instance(object, name, "Only instances have properties.").shape;
+    for (int i = 0; i < size; i++){
+      if (shapes[i] == shape) return methods[i];
+    }
+
+    int offset = shape.offset(name.lexeme);
+    if (offset >= 0){
+      remember(shape, offset, null, null);
+      return null;
+    }
+    LoxMethod method = findMethod(shape, name);
+    remember(shape, -1, method, null);
+    return method;
+  }
+
+  void set(Object object, Token name, Object value){
+    LoxInstance instance = instance(object, name, "Only instances have fields.");
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++){
+      if (shapes[i] == shape){
+        if (transitions[i] != null) instance.transition(transitions[i]);
+        instance.fields[offsets[i]] = value;
+        return;
+      }
+    }
+
+    int offset = shape.offset(name.lexeme);
+    Shape next = null;
+    if (offset < 0){
+      next = shape.add(name.lexeme);
+      offset = shape.size();
+      instance.transition(next);
+    }
+    remember(shape, offset, null, next);
+    instance.fields[offset] = value;
+  }
+
+  private static LoxInstance instance(Object object, Token name, String message){
+    if (!(object instanceof LoxInstance)) throw new RuntimeError(name, message);
+    return (LoxInstance) object;
+  }
+
+  private static LoxMethod findMethod(Shape shape, Token name){
+    LoxMethod method = shape.klass.findMethod(name.lexeme);
+    if (method == null){
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+    return method;
+  }
+
+  private void remember(Shape shape, int offset, LoxMethod method, Shape transition){
+    if (size == ENTRIES) return;
+    shapes[size] = shape;
+    offsets[size] = offset;
+    methods[size] = method;
+    transitions[size] = transition;
+    size++;
+  }
+}
@@ -1,27 +1,84 @@
 package lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  // depth/slot of anything that lives in the global environment
+  static final int GLOBAL = -1;
+
+  private final Stack<Map<String, Local>> scopes = new Stack<>();
+  private final Stack<Frame> frames = new Stack<>();
+  // global functions and every other global name declared or assigned, so a function that
+  // is redefined or assigned anywhere in the program gets marked for the Optimizer
+  private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+  private final Set<String> declaredGlobals = new HashSet<>();
+  private final Set<String> assignedGlobals = new HashSet<>();
   private FunctionType currFunc = FunctionType.NONE;
+  private ClassType currClass = ClassType.NONE;
+  // loops around the statement being resolved, within the current function
+  private int loopDepth = 0;
 
-  Resolver(Interpreter interpreter){
-    this.interpreter = interpreter;
-  }
   private enum FunctionType {
     NONE,
-    FUNCTION
+    FUNCTION,
+    METHOD,
+    INITIALIZER
+  }
+
+  private enum ClassType {
+    NONE,
+    CLASS
+  }
+
+  // An Environment that will exist at runtime: one per function, and one per top level
+  // block since globals have no slots to put its locals in. Every other block is flat, its
+  // locals take slots in the frame around it, so depths count frames rather than scopes.
+  private static class Frame {
+    int slots = 0;
+    // the locals of enclosing frames the function reads or assigns, in upvalue order, and
+    // where each comes from as Environment.capture expects it
+    final List<Local> upvalues = new ArrayList<>();
+    final List<Integer> captures = new ArrayList<>();
+  }
+
+  // slots are handed out in declaration order, so they double as the index into Environment
+  private static class Local {
+    final int slot;
+    // index into frames of the Environment the slot is in
+    final int frame;
+    boolean defined = false;
+    // the var or fun that declared it, so assignments can mark it for the Optimizer
+    Stmt declaration;
+    // set once a nested function uses it, then the declaration and every use in its own
+    // frame are marked to go through a cell when the scope ends
+    boolean captured = false;
+    final List<Expr> uses = new ArrayList<>();
+
+    Local(int slot, int frame){
+      this.slot = slot;
+      this.frame = frame;
+    }
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    Local local = resolveLocal(expr.name, expr);
+    expr.depth = depth(local);
+    expr.slot = local == null ? GLOBAL : local.slot;
+    expr.upvalue = upvalue(local);
+    if (local != null){
+      markAssigned(local.declaration);
+    } else {
+      assignedGlobals.add(expr.name.lexeme);
+      markAssigned(globalFunctions.get(expr.name.lexeme));
+    }
     return null;
   }
 
@@ -42,6 +99,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     return null;
   }
 
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    resolve(expr.object);
+    return null;
+  }
+
   @Override
   public Void visitGroupingExpr(Expr.Grouping expr) {
     resolve(expr.expression);
@@ -60,6 +123,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     return null;
   }
 
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    resolve(expr.value);
+    resolve(expr.object);
+    return null;
+  }
+
   @Override
   public Void visitUnaryExpr(Expr.Unary expr) {
     resolve(expr.right);
@@ -68,23 +138,68 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE){
-      Lox.error(expr.name, "Can't read local variable in its own initializer");
+    if (expr.name.type == TokenType.THIS && currClass == ClassType.NONE){
+      Lox.error(expr.name, "Can't use 'this' outside of a class");
+      return null;
+    }
+    if (!scopes.isEmpty()){
+      Local local = scopes.peek().get(expr.name.lexeme);
+      if (local != null && !local.defined) {
+        Lox.error(expr.name, "Can't read local variable in its own initializer");
+      }
     }
-    resolveLocal(expr, expr.name);
+    Local local = resolveLocal(expr.name, expr);
+    expr.depth = depth(local);
+    expr.slot = local == null ? GLOBAL : local.slot;
+    expr.upvalue = upvalue(local);
     return null;
   }
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    beginScope();
+    // a captured local gets a new cell each time its declaration runs, so a loop body
+    // doesn't need a fresh Environment each time around to give closures their own copy
+    stmt.flat = !frames.isEmpty();
+    beginScope(!stmt.flat);
     resolve(stmt.statements);
-    endScope();
+    if (stmt.statements.size() == 2) markCounter(stmt.statements.get(0), stmt.statements.get(1));
+    if (!stmt.flat) stmt.localCount = frames.peek().slots;
+    endScope(!stmt.flat);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (loopDepth == 0) {
+      Lox.error(stmt.keyword, "Can't use 'break' outside of a loop");
+    }
     return null;
   }
 
   @Override
   public Void visitClassStmt(Stmt.Class stmt) {
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot != GLOBAL){
+      scopes.peek().get(stmt.name.lexeme).declaration = stmt;
+    } else {
+      declareGlobal(stmt.name.lexeme, null);
+    }
+    define(stmt.name);
+
+    ClassType enclosingClass = currClass;
+    currClass = ClassType.CLASS;
+    for (Stmt.Function method : stmt.methods){
+      resolveFunction(method, method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD);
+    }
+    currClass = enclosingClass;
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    if (loopDepth == 0) {
+      Lox.error(stmt.keyword, "Can't use 'continue' outside of a loop");
+    }
     return null;
   }
 
@@ -96,7 +211,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot != GLOBAL){
+      scopes.peek().get(stmt.name.lexeme).declaration = stmt;
+    } else {
+      declareGlobal(stmt.name.lexeme, stmt);
+    }
     define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION);
@@ -123,14 +243,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
       Lox.error(stmt.keyword, "Can't return from top-level code");
     }
     if (stmt.value != null){
+      if (currFunc == FunctionType.INITIALIZER) {
+        Lox.error(stmt.keyword, "Can't return a value from an initializer");
+      }
       resolve(stmt.value);
     }
+    // nothing is left to do in this frame once the call returns, so the engine can let it
+    // go before making the call
+    stmt.tailCall = stmt.value instanceof Expr.Call;
     return null;
   }
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot != GLOBAL){
+      scopes.peek().get(stmt.name.lexeme).declaration = stmt;
+    } else {
+      declareGlobal(stmt.name.lexeme, null);
+    }
     if (stmt.initializer != null){
       resolve(stmt.initializer);
     }
@@ -141,7 +272,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
     resolve(stmt.condition);
+    loopDepth++;
     resolve(stmt.body);
+    loopDepth--;
+    if (stmt.increment != null) resolve(stmt.increment);
     return null;
   }
 
@@ -161,46 +295,180 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
   private void resolveFunction(Stmt.Function function, FunctionType type){
     FunctionType enclosingFunction = currFunc;
+    int enclosingLoopDepth = loopDepth;
     currFunc = type;
-    beginScope();
+    loopDepth = 0;
+    beginScope(true);
     for (Token param : function.params){
       declare(param);
       define(param);
     }
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER){
+      Token self = new Token(TokenType.THIS, "this", null, function.name.line);
+      function.receiver = declare(self);
+      define(self);
+      function.initializer = type == FunctionType.INITIALIZER;
+    }
     resolve(function.body);
-    endScope();
+    Frame frame = frames.peek();
+    function.localCount = frame.slots;
+    function.captures = new int[frame.captures.size()];
+    for (int i = 0; i < function.captures.length; i++){
+      function.captures[i] = frame.captures.get(i);
+    }
+    // a parameter or `this` arrives as a plain value, the call puts it in a cell before
+    // the body runs
+    int arguments = function.params.size() + (function.receiver == GLOBAL ? 0 : 1);
+    List<Integer> capturedParams = new ArrayList<>();
+    for (Local local : scopes.peek().values()){
+      if (local.captured && local.slot < arguments) capturedParams.add(local.slot);
+    }
+    function.capturedParams = new int[capturedParams.size()];
+    for (int i = 0; i < function.capturedParams.length; i++){
+      function.capturedParams[i] = capturedParams.get(i);
+    }
+    endScope(true);
     currFunc = enclosingFunction;
+    loopDepth = enclosingLoopDepth;
   }
 
-  private void resolveLocal(Expr expr, Token name){
+  // null for a global
+  private Local resolveLocal(Token name, Expr use){
     for (int i = scopes.size() - 1; i >= 0; i--){
-      if (scopes.get(i).containsKey(name.lexeme)){
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
+      Local local = scopes.get(i).get(name.lexeme);
+      if (local != null){
+        local.uses.add(use);
+        return local;
       }
     }
+    return null;
   }
 
-  private void beginScope(){
-    scopes.push(new HashMap<String, Boolean>());
+  private int depth(Local local){
+    if (local == null) return GLOBAL;
+    return frames.size() - 1 - local.frame;
   }
 
-  private void endScope(){
-    scopes.pop();
+  // index into the innermost frame's upvalues, GLOBAL for a global or the frame's own local
+  private int upvalue(Local local){
+    if (local == null || local.frame == frames.size() - 1) return GLOBAL;
+    local.captured = true;
+    return upvalue(frames.size() - 1, local);
   }
 
-  private void declare(Token name){
-    if (scopes.isEmpty()) return;
+  // every function between the use and the declaration captures the local in turn, so each
+  // one's closure can hand the cell on to the next
+  private int upvalue(int frame, Local local){
+    Frame current = frames.get(frame);
+    int index = current.upvalues.indexOf(local);
+    if (index != -1) return index;
+
+    int capture = local.frame == frame - 1 ? local.slot : ~upvalue(frame - 1, local);
+    current.upvalues.add(local);
+    current.captures.add(capture);
+    return current.upvalues.size() - 1;
+  }
+
+  private void beginScope(boolean frame){
+    scopes.push(new HashMap<String, Local>());
+    if (frame) frames.push(new Frame());
+  }
+
+  private void endScope(boolean frame){
+    for (Local local : scopes.pop().values()){
+      if (local.captured) markCaptured(local);
+    }
+    if (frame) frames.pop();
+  }
 
-    Map<String, Boolean> scope = scopes.peek();
+  private int declare(Token name){
+    if (scopes.isEmpty()) return GLOBAL;
+
+    Map<String, Local> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)){
       Lox.error(name, "A variable with this name already exists within this scope");
+      return scope.get(name.lexeme).slot;
+    }
+    Local local = new Local(frames.peek().slots++, frames.size() - 1);
+    scope.put(name.lexeme, local);
+    return local.slot;
+  }
+
+  private void declareGlobal(String name, Stmt.Function function){
+    if (!declaredGlobals.add(name)){
+      markAssigned(globalFunctions.get(name));
+      markAssigned(function);
+    }
+    if (function == null) return;
+    globalFunctions.put(name, function);
+    if (assignedGlobals.contains(name)) markAssigned(function);
+  }
+
+  private static void markAssigned(Stmt declaration){
+    if (declaration instanceof Stmt.Var){
+      ((Stmt.Var) declaration).assigned = true;
+    } else if (declaration instanceof Stmt.Function){
+      ((Stmt.Function) declaration).assigned = true;
     }
-    scope.put(name.lexeme, false);
+  }
+
+  private static void markCaptured(Local local){
+    if (local.declaration instanceof Stmt.Var){
+      ((Stmt.Var) local.declaration).captured = true;
+    } else if (local.declaration instanceof Stmt.Function){
+      ((Stmt.Function) local.declaration).captured = true;
+    } else if (local.declaration instanceof Stmt.Class){
+      ((Stmt.Class) local.declaration).captured = true;
+    }
+    for (Expr use : local.uses){
+      if (use instanceof Expr.Variable){
+        ((Expr.Variable) use).captured = true;
+      } else if (use instanceof Expr.Assign){
+        ((Expr.Assign) use).captured = true;
+      }
+    }
+  }
+
+  // The block a for loop with a var initializer turns into. When the loop is
+  // for (var i = a; i <op> limit; i = i +/- number) and only the increment assigns i, with
+  // no closure capturing it, the engines can keep i as a double while the loop runs.
+  private void markCounter(Stmt first, Stmt second){
+    if (!(first instanceof Stmt.Var && second instanceof Stmt.While)) return;
+    Stmt.Var var = (Stmt.Var) first;
+    Stmt.While loop = (Stmt.While) second;
+    if (var.slot == GLOBAL || !isCounter(loop.condition, var.name)) return;
+    switch (((Expr.Binary) loop.condition).operator.type){
+      case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> {}
+      default -> {return;}
+    }
+
+    if (!(loop.increment instanceof Expr.Assign)) return;
+    Expr.Assign increment = (Expr.Assign) loop.increment;
+    if (!increment.name.lexeme.equals(var.name.lexeme) || !(increment.value instanceof Expr.Binary)) return;
+    Expr.Binary sum = (Expr.Binary) increment.value;
+    if (!isCounter(sum, var.name) || !(sum.right instanceof Expr.Literal)) return;
+    Object step = ((Expr.Literal) sum.right).value;
+    if (!(step instanceof Double)) return;
+    if (sum.operator.type != TokenType.PLUS && sum.operator.type != TokenType.MINUS) return;
+
+    Local local = scopes.peek().get(var.name.lexeme);
+    if (local.captured) return;
+    for (Expr use : local.uses){
+      if (use instanceof Expr.Assign && use != increment) return;
+    }
+    loop.counter = var.slot;
+    loop.step = sum.operator.type == TokenType.PLUS ? (double) step : -(double) step;
+  }
+
+  // a binary expression whose left operand reads the named variable
+  private static boolean isCounter(Expr expr, Token name){
+    if (!(expr instanceof Expr.Binary)) return false;
+    Expr left = ((Expr.Binary) expr).left;
+    return left instanceof Expr.Variable && ((Expr.Variable) left).name.lexeme.equals(name.lexeme);
   }
 
   private void define(Token name){
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().get(name.lexeme).defined = true;
   }
 }
@@ -1,144 +1,165 @@
 package lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 import static lox.TokenType.*;
+
+// Scans a block of tokens at a time into its TokenBuffer as the Parser asks for them,
+// straight from the source's UTF-8 bytes. For a file those are mapped from disk, so
+// neither the source nor its tokens are ever held in the heap all at once, only the
+// lexemes the AST keeps.
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final ByteBuffer source;
+  private final int length;
+  final TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-  // keyword mapping
-
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and", AND);
-    keywords.put("class", CLASS);
-    keywords.put("if", IF);
-    keywords.put("else", ELSE);
-    keywords.put("false", FALSE);
-    keywords.put("fun", FUN);
-    keywords.put("for", FOR);
-    keywords.put("nil", NIL);
-    keywords.put("or", OR);
-    keywords.put("print", PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super", SUPER);
-    keywords.put("this", THIS);
-    keywords.put("true", TRUE);
-    keywords.put("var", VAR);
-    keywords.put("while", WHILE);
-//    keywords.put("break", BREAK);
-  }
+  // Runs of spaces, comments and string bodies are skipped eight bytes at a time: each
+  // long read from the source is checked for the bytes that end the run all at once, and
+  // only the last few bytes of the source go one at a time.
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  private static final long SPACES = ' ' * ONES;
+  private static final long NEWLINES = '\n' * ONES;
+  private static final long QUOTES = '"' * ONES;
+  private static final long STARS = '*' * ONES;
 
   Scanner(String source) {
-    this.source = source;
+    this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  Scanner(ByteBuffer source) {
+    this(source, 0, source.limit(), 1);
+  }
+
+  // scans only the bytes from..to of source, the first of them on the given line
+  Scanner(ByteBuffer source, int from, int to, int line) {
+    // a view of its own, Scanners of one source can run on different threads; the first
+    // byte of a word is its lowest, so the first match is the lowest bit set
+    this.source = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.length = to;
+    this.tokens = new TokenBuffer(this.source);
+    this.start = from;
+    this.current = from;
+    this.line = line;
   }
 
-  List<Token> scanTokens() {
-    while (!isAtEnd()) {
+  // scans into tokens until it is full, or until the source runs out and it ends in EOF
+  void fill() {
+    while (!tokens.isFull()) {
+      if (isAtEnd()) {
+        tokens.add(EOF, current, 0, line);
+        return;
+      }
       start = current;
-      scanToken();
+      TokenType type = scanToken();
+      if (type != null) tokens.add(type, start, current - start, line);
     }
-    tokens.add(new Token(EOF, "", null, line));
-    return tokens;
   }
 
-  private void scanToken() {
+  // null for whitespace, comments and characters that aren't part of any token
+  private TokenType scanToken() {
     char c = advance();
     switch (c) {
-      case '(' -> addToken(LEFT_PAREN);
-      case ')' -> addToken(RIGHT_PAREN);
-      case '{' -> addToken(LEFT_BRACE);
-      case '}' -> addToken(RIGHT_BRACE);
-      case ',' -> addToken(COMMA);
-      case '.' -> addToken(DOT);
-      case '-' -> addToken(MINUS);
-      case '+' -> addToken(PLUS);
-      case ';' -> addToken(SEMICOLON);
-      case '*' -> addToken(STAR);
-      case '!' -> addToken(match('=') ? BANG_EQUAL : BANG);
-      case '=' -> addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-      case '<' -> addToken(match('=') ? LESS_EQUAL : LESS);
-      case '>' -> addToken(match('=') ? GREATER_EQUAL : GREATER);
-      case '?' -> addToken(match(':') ? TERNARY : IDENTIFIER);
+      case '(' -> {return LEFT_PAREN;}
+      case ')' -> {return RIGHT_PAREN;}
+      case '{' -> {return LEFT_BRACE;}
+      case '}' -> {return RIGHT_BRACE;}
+      case ',' -> {return COMMA;}
+      case '.' -> {return DOT;}
+      case '-' -> {return MINUS;}
+      case '+' -> {return PLUS;}
+      case ';' -> {return SEMICOLON;}
+      case '*' -> {return STAR;}
+      case '!' -> {return match('=') ? BANG_EQUAL : BANG;}
+      case '=' -> {return match('=') ? EQUAL_EQUAL : EQUAL;}
+      case '<' -> {return match('=') ? LESS_EQUAL : LESS;}
+      case '>' -> {return match('=') ? GREATER_EQUAL : GREATER;}
+      case '?' -> {return match(':') ? TERNARY : IDENTIFIER;}
       case '/' -> {
         // comments generally terminate at the end of lines
         if (match('/')) {
-          while (peek() != '\n' && !isAtEnd()) advance();
+          current = find(current, NEWLINES, NEWLINES);
         } else if (match('*')){
-          while ((peek() != '/' || peek() != '*') && !isAtEnd()) advance(); // a c style comment handler
+          blockComment();
         }
         else {
-          addToken(SLASH);
+          return SLASH;
         }
       }
-      case ' ', '\r', '\t' -> {}
+      case ' ' -> current = skipSpaces(current);
+      case '\r', '\t' -> {}
       case '\n' -> line++;
-      case '"' -> string();
+      case '"' -> {return string();}
       default -> {
         if (isDigit(c)) {
-          number();
+          return number();
         } else if (isAlpha(c)){
-          identifier();
+          return identifier();
         }
         else {
+          // the rest of a multi-byte character belongs to the same error
+          while (peek() >= 0x80 && peek() < 0xC0) advance();
           Lox.error(line, "Unexpected character. ");
         }
       }
     }
+    return null;
   }
 
+  // bytes come out as chars 0 to 255, every one the grammar cares about is ASCII
   private char advance() {
-    return source.charAt(current++);
-  }
-
-  private void addToken(TokenType type){
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    return (char) (source.get(current++) & 0xFF);
   }
 
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (peek() != expected) return false;
     current++;
     return true;
   }
 
   private char peek() {
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return (char) (source.get(current) & 0xFF);
   }
 
   private char peekNext(){
-    if (isAtEnd()) return '\0';
-    return source.charAt(current + 1);
+    if (current + 1 >= length) return '\0';
+    return (char) (source.get(current + 1) & 0xFF);
   }
 
-  private void string(){
-    while (peek() != '"' && !isAtEnd()) {
-      if (peek() == '\n') line++;
-      advance();
+  // a c style comment handler, up to the */ that ends it or the end of the source
+  private void blockComment(){
+    while (true) {
+      current = find(current, STARS, NEWLINES);
+      if (isAtEnd()) return;
+      if (advance() == '\n') {
+        line++;
+      } else if (match('/')) {
+        return;
+      }
+    }
+  }
+
+  private TokenType string(){
+    current = find(current, QUOTES, NEWLINES);
+    while (peek() == '\n') {
+      line++;
+      current = find(current + 1, QUOTES, NEWLINES);
     }
 
     if (isAtEnd()){
       Lox.error(line, "unterminated string.");
-      return;
+      return null;
     }
     advance(); // closing quote
-    String value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    return STRING;
   }
 
   private boolean isDigit(char c) {
@@ -153,7 +174,7 @@ class Scanner {
     return isAlpha(c) || isDigit(c);
   }
 
-  private void number() {
+  private TokenType number() {
     while (isDigit(peek())) advance();
 
     // if fraction
@@ -162,17 +183,99 @@ class Scanner {
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+    return NUMBER;
   }
 
-  private void identifier() {
+  private TokenType identifier() {
     while(isAlphaNumeric(peek())) advance();
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+    return keyword();
+  }
+
+  // Keyword mapping: a switch on the length and first letter of the word leaves at most a
+  // couple of keywords to compare it with, in place in the source, so no word becomes a
+  // String to be looked up.
+  private TokenType keyword() {
+    char first = (char) source.get(start);
+    switch (current - start) {
+      case 2 -> {
+        if (first == 'i') return is("if") ? IF : IDENTIFIER;
+        if (first == 'o') return is("or") ? OR : IDENTIFIER;
+      }
+      case 3 -> {
+        switch (first) {
+          case 'a' -> {return is("and") ? AND : IDENTIFIER;}
+          case 'f' -> {return is("fun") ? FUN : is("for") ? FOR : IDENTIFIER;}
+          case 'n' -> {return is("nil") ? NIL : IDENTIFIER;}
+          case 'v' -> {return is("var") ? VAR : IDENTIFIER;}
+        }
+      }
+      case 4 -> {
+        switch (first) {
+          case 'e' -> {return is("else") ? ELSE : IDENTIFIER;}
+          case 't' -> {return is("true") ? TRUE : is("this") ? THIS : IDENTIFIER;}
+        }
+      }
+      case 5 -> {
+        switch (first) {
+          case 'b' -> {return is("break") ? BREAK : IDENTIFIER;}
+          case 'c' -> {return is("class") ? CLASS : IDENTIFIER;}
+          case 'f' -> {return is("false") ? FALSE : IDENTIFIER;}
+          case 'p' -> {return is("print") ? PRINT : IDENTIFIER;}
+          case 's' -> {return is("super") ? SUPER : IDENTIFIER;}
+          case 'w' -> {return is("while") ? WHILE : IDENTIFIER;}
+        }
+      }
+      case 6 -> {
+        if (first == 'r') return is("return") ? RETURN : IDENTIFIER;
+      }
+      case 8 -> {
+        if (first == 'c') return is("continue") ? CONTINUE : IDENTIFIER;
+      }
+    }
+    return IDENTIFIER;
+  }
+
+  // whether the word just scanned, already known to be as long as keyword and to start
+  // with the same letter, is keyword
+  private boolean is(String keyword) {
+    for (int i = 1; i < keyword.length(); i++) {
+      if (source.get(start + i) != keyword.charAt(i)) return false;
+    }
+    return true;
   }
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
+  }
+
+  // the first position at or after from holding the byte a or b repeat, or length
+  private int find(int from, long a, long b) {
+    int i = from;
+    for (; i + 8 <= length; i += 8) {
+      long word = source.getLong(i);
+      long found = equalBytes(word, a) | equalBytes(word, b);
+      if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+    }
+    for (; i < length; i++) {
+      byte c = source.get(i);
+      if (c == (byte) a || c == (byte) b) return i;
+    }
+    return length;
+  }
+
+  // the first position at or after from that isn't a space, or length
+  private int skipSpaces(int from) {
+    int i = from;
+    for (; i + 8 <= length; i += 8) {
+      long other = ~equalBytes(source.getLong(i), SPACES) & HIGH_BITS;
+      if (other != 0) return i + (Long.numberOfTrailingZeros(other) >>> 3);
+    }
+    while (i < length && source.get(i) == ' ') i++;
+    return i;
+  }
+
+  // the high bit of each byte of word that equals the one pattern repeats, and no others
+  private static long equalBytes(long word, long pattern) {
+    long x = word ^ pattern;
+    return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
   }
 }
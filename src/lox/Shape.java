@@ -0,0 +1,48 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A hidden class: the properties an instance has and the index of each in its fields
+// array. A Shape never changes. Setting a property an instance doesn't have yet moves it
+// along a transition to the Shape with that property added, so instances of a class that
+// get the same properties in the same order share their Shapes, and a property site can
+// cache where a property is by Shape alone.
+final class Shape {
+  final LoxClass klass;
+  private final Map<String, Integer> offsets;
+  private final Map<String, Shape> transitions = new HashMap<>();
+
+  // the Shape every new instance of klass starts out with
+  Shape(LoxClass klass){
+    this.klass = klass;
+    this.offsets = new HashMap<>();
+  }
+
+  private Shape(Shape parent, String name){
+    this.klass = parent.klass;
+    this.offsets = new HashMap<>(parent.offsets);
+    offsets.put(name, offsets.size());
+  }
+
+  int size(){
+    return offsets.size();
+  }
+
+  // -1 when instances of this Shape don't have the property
+  int offset(String name){
+    Integer offset = offsets.get(name);
+    return offset == null ? -1 : offset;
+  }
+
+  // the Shape an instance of this one moves to when it gets the property name
+  Shape add(String name){
+    Shape next = transitions.get(name);
+    if (next == null){
+      next = new Shape(this, name);
+      transitions.put(name, next);
+      if (next.size() > klass.fieldCount) klass.fieldCount = next.size();
+    }
+    return next;
+  }
+}
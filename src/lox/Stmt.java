@@ -5,7 +5,9 @@ import java.util.List;
 abstract class Stmt {
  interface Visitor<R> {
  R visitBlockStmt(Block stmt);
+ R visitBreakStmt(Break stmt);
  R visitClassStmt(Class stmt);
+ R visitContinueStmt(Continue stmt);
  R visitExpressionStmt(Expression stmt);
  R visitFunctionStmt(Function stmt);
  R visitIfStmt(If stmt);
@@ -18,7 +20,9 @@ abstract class Stmt {
  abstract <R> R accept(Visitor<R> visitor);
  interface VisitorRPN<R> {
  R visitBlockStmtRPN(Block stmt);
+ R visitBreakStmtRPN(Break stmt);
  R visitClassStmtRPN(Class stmt);
+ R visitContinueStmtRPN(Continue stmt);
  R visitExpressionStmtRPN(Expression stmt);
  R visitFunctionStmtRPN(Function stmt);
  R visitIfStmtRPN(If stmt);
@@ -31,6 +35,8 @@ abstract class Stmt {
  abstract <R> R acceptRPN(VisitorRPN<R> visitor);
  static class Block extends Stmt {
  final List<Stmt> statements;
+ int localCount;
+ boolean flat;
  Block(List<Stmt> statements) {
  this.statements = statements;
  }
@@ -44,9 +50,26 @@ abstract class Stmt {
  return visitor.visitBlockStmtRPN(this);
  }
  }
+ static class Break extends Stmt {
+ final Token keyword;
+ Break(Token keyword) {
+ this.keyword = keyword;
+ }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+ return visitor.visitBreakStmt(this);
+ }
+ @Override
+ <R> R acceptRPN(VisitorRPN<R> visitor) {
+ return visitor.visitBreakStmtRPN(this);
+ }
+ }
  static class Class extends Stmt {
  final Token name;
  final List<Stmt.Function> methods;
+ int slot = Resolver.GLOBAL;
+ boolean captured;
  Class(Token name, List<Stmt.Function> methods) {
  this.name = name;
  this.methods = methods;
@@ -61,6 +84,21 @@ abstract class Stmt {
  return visitor.visitClassStmtRPN(this);
  }
  }
+ static class Continue extends Stmt {
+ final Token keyword;
+ Continue(Token keyword) {
+ this.keyword = keyword;
+ }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+ return visitor.visitContinueStmt(this);
+ }
+ @Override
+ <R> R acceptRPN(VisitorRPN<R> visitor) {
+ return visitor.visitContinueStmtRPN(this);
+ }
+ }
  static class Expression extends Stmt {
  final Expr expression;
  Expression(Expr expression) {
@@ -80,6 +118,14 @@ abstract class Stmt {
  final Token name;
  final List<Token> params;
  final List<Stmt> body;
+ int slot = Resolver.GLOBAL;
+ int localCount;
+ boolean assigned;
+ boolean captured;
+ int[] captures;
+ int[] capturedParams;
+ int receiver = Resolver.GLOBAL;
+ boolean initializer;
  Function(Token name, List<Token> params, List<Stmt> body) {
  this.name = name;
  this.params = params;
@@ -132,6 +178,7 @@ abstract class Stmt {
  static class Return extends Stmt {
  final Token keyword;
  final Expr value;
+ boolean tailCall;
  Return(Token keyword, Expr value) {
  this.keyword = keyword;
  this.value = value;
@@ -149,6 +196,9 @@ abstract class Stmt {
  static class Var extends Stmt {
  final Token name;
  final Expr initializer;
+ int slot = Resolver.GLOBAL;
+ boolean assigned;
+ boolean captured;
  Var(Token name, Expr initializer) {
  this.name = name;
  this.initializer = initializer;
@@ -166,9 +216,13 @@ abstract class Stmt {
  static class While extends Stmt {
  final Expr condition;
  final Stmt body;
- While(Expr condition, Stmt body) {
+ final Expr increment;
+ int counter = Resolver.GLOBAL;
+ double step;
+ While(Expr condition, Stmt body, Expr increment) {
  this.condition = condition;
  this.body = body;
+ this.increment = increment;
  }
 
  @Override
@@ -0,0 +1,371 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Executable form of a Stmt, built once by NodeCompiler alongside ExprNode.
+// execute returns NORMAL when the statement ran to completion, BREAK or CONTINUE on the
+// way out to the innermost While, a TailCall for a return statement's call that
+// NodeFunction.call still has to make, and anything else is the value of a return
+// statement on its way out to NodeFunction.call.
+abstract class StmtNode {
+  static final Object NORMAL = new Object();
+  static final Object BREAK = new Object();
+  static final Object CONTINUE = new Object();
+
+  static final class TailCall {
+    final NodeFunction function;
+    final Object[] arguments;
+
+    TailCall(NodeFunction function, Object[] arguments){
+      this.function = function;
+      this.arguments = arguments;
+    }
+  }
+
+  abstract Object execute(Environment env);
+
+  static Object executeAll(StmtNode[] statements, Environment env){
+    for (StmtNode statement : statements){
+      Object completion = statement.execute(env);
+      if (completion != NORMAL) return completion;
+    }
+    return NORMAL;
+  }
+
+  static final class Expression extends StmtNode {
+    private final ExprNode expression;
+
+    Expression(ExprNode expression){
+      this.expression = expression;
+    }
+
+    @Override
+    Object execute(Environment env){
+      expression.evaluate(env);
+      return NORMAL;
+    }
+  }
+
+  static final class Print extends StmtNode {
+    private final ExprNode expression;
+
+    Print(ExprNode expression){
+      this.expression = expression;
+    }
+
+    @Override
+    Object execute(Environment env){
+      System.out.println(Interpreter.stringify(expression.evaluate(env)));
+      return NORMAL;
+    }
+  }
+
+  static final class DefineLocal extends StmtNode {
+    private final int slot;
+    private final ExprNode initializer;
+
+    DefineLocal(int slot, ExprNode initializer){
+      this.slot = slot;
+      this.initializer = initializer;
+    }
+
+    @Override
+    Object execute(Environment env){
+      env.slots[slot] = initializer == null ? null : initializer.evaluate(env);
+      return NORMAL;
+    }
+  }
+
+  // a local that a closure captures, each run of the declaration gets a new cell
+  static final class DefineCell extends StmtNode {
+    private final int slot;
+    private final ExprNode initializer;
+
+    DefineCell(int slot, ExprNode initializer){
+      this.slot = slot;
+      this.initializer = initializer;
+    }
+
+    @Override
+    Object execute(Environment env){
+      env.slots[slot] = new Environment.Cell(initializer == null ? null : initializer.evaluate(env));
+      return NORMAL;
+    }
+  }
+
+  static final class DefineGlobal extends StmtNode {
+    private final String name;
+    private final ExprNode initializer;
+
+    DefineGlobal(String name, ExprNode initializer){
+      this.name = name;
+      this.initializer = initializer;
+    }
+
+    @Override
+    Object execute(Environment env){
+      env.define(name, initializer == null ? null : initializer.evaluate(env));
+      return NORMAL;
+    }
+  }
+
+  static final class Function extends StmtNode {
+    private final Stmt.Function declaration;
+    private final Token name;
+    private final int slot;
+    private final boolean captured;
+    private final int[] captures;
+    private final StmtNode[] body;
+
+    Function(Stmt.Function declaration, StmtNode[] body){
+      this.declaration = declaration;
+      this.name = declaration.name;
+      this.slot = declaration.slot;
+      this.captured = declaration.captured;
+      this.captures = declaration.captures;
+      this.body = body;
+    }
+
+    @Override
+    Object execute(Environment env){
+      if (slot == Resolver.GLOBAL){
+        env.define(name.lexeme, create(env));
+      } else if (!captured){
+        env.slots[slot] = create(env);
+      } else {
+        // the cell goes in first so a function that calls itself can capture it
+        Environment.Cell cell = new Environment.Cell(null);
+        env.slots[slot] = cell;
+        cell.value = create(env);
+      }
+      return NORMAL;
+    }
+
+    private NodeFunction create(Environment env){
+      return new NodeFunction(declaration, body, env.capture(captures));
+    }
+  }
+
+  static final class Class extends StmtNode {
+    private final Stmt.Class declaration;
+    private final StmtNode[][] bodies;
+
+    Class(Stmt.Class declaration, StmtNode[][] bodies){
+      this.declaration = declaration;
+      this.bodies = bodies;
+    }
+
+    @Override
+    Object execute(Environment env){
+      // like a function, a captured class is in its cell before its methods capture it
+      Environment.Cell cell = null;
+      if (declaration.captured){
+        cell = new Environment.Cell(null);
+        env.slots[declaration.slot] = cell;
+      }
+      Map<String, LoxMethod> methods = new HashMap<>();
+      for (int i = 0; i < bodies.length; i++){
+        Stmt.Function method = declaration.methods.get(i);
+        methods.put(method.name.lexeme, new NodeFunction(method, bodies[i], env.capture(method.captures)));
+      }
+
+      LoxClass klass = new LoxClass(declaration.name.lexeme, methods);
+      if (cell != null){
+        cell.value = klass;
+      } else if (declaration.slot == Resolver.GLOBAL){
+        env.define(declaration.name.lexeme, klass);
+      } else {
+        env.slots[declaration.slot] = klass;
+      }
+      return NORMAL;
+    }
+  }
+
+  static final class Block extends StmtNode {
+    private final int localCount;
+    private final StmtNode[] statements;
+
+    Block(int localCount, StmtNode[] statements){
+      this.localCount = localCount;
+      this.statements = statements;
+    }
+
+    @Override
+    Object execute(Environment env){
+      // a top level block captures nothing, globals are reached by name
+      return executeAll(statements, new Environment(null, localCount));
+    }
+  }
+
+  // a flat block, its locals live in the surrounding frame
+  static final class Sequence extends StmtNode {
+    private final StmtNode[] statements;
+
+    Sequence(StmtNode[] statements){
+      this.statements = statements;
+    }
+
+    @Override
+    Object execute(Environment env){
+      return executeAll(statements, env);
+    }
+  }
+
+  static final class If extends StmtNode {
+    private final ExprNode condition;
+    private final StmtNode thenBranch;
+    private final StmtNode elseBranch;
+
+    If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch){
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    Object execute(Environment env){
+      if (Interpreter.isTruthy(condition.evaluate(env))){
+        return thenBranch.execute(env);
+      } else if (elseBranch != null){
+        return elseBranch.execute(env);
+      }
+      return NORMAL;
+    }
+  }
+
+  static final class While extends StmtNode {
+    private final ExprNode condition;
+    private final StmtNode body;
+    private final ExprNode increment;
+
+    While(ExprNode condition, StmtNode body, ExprNode increment){
+      this.condition = condition;
+      this.body = body;
+      this.increment = increment;
+    }
+
+    @Override
+    Object execute(Environment env){
+      while (Interpreter.isTruthy(condition.evaluate(env))){
+        Object completion = body.execute(env);
+        if (completion != NORMAL && completion != CONTINUE){
+          return completion == BREAK ? NORMAL : completion;
+        }
+        if (increment != null) increment.evaluate(env);
+      }
+      return NORMAL;
+    }
+  }
+
+  // A for loop the Resolver gave a counter, see Interpreter.countedLoop. A counter that
+  // doesn't start out as a number runs the plain loop instead.
+  static final class CountedLoop extends StmtNode {
+    private final int slot;
+    private final Token operator;
+    private final ExprNode limit;
+    private final double step;
+    private final StmtNode body;
+    private final While loop;
+
+    CountedLoop(int slot, Token operator, ExprNode limit, double step, StmtNode body, While loop){
+      this.slot = slot;
+      this.operator = operator;
+      this.limit = limit;
+      this.step = step;
+      this.body = body;
+      this.loop = loop;
+    }
+
+    @Override
+    Object execute(Environment env){
+      Object[] slots = env.slots;
+      if (!(slots[slot] instanceof Double)) return loop.execute(env);
+      double counter = (double) slots[slot];
+      while (true){
+        double value;
+        try {
+          value = limit.evaluateNumber(env);
+        } catch (ExprNode.NotNumber e){
+          Interpreter.checkNumberOperands(operator, counter, e.value);
+          throw e;
+        }
+        boolean more;
+        switch (operator.type){
+          case LESS -> more = counter < value;
+          case LESS_EQUAL -> more = counter <= value;
+          case GREATER -> more = counter > value;
+          default -> more = counter >= value;
+        }
+        if (!more) return NORMAL;
+
+        Object completion = body.execute(env);
+        if (completion != NORMAL && completion != CONTINUE){
+          return completion == BREAK ? NORMAL : completion;
+        }
+        counter += step;
+        slots[slot] = counter;
+      }
+    }
+  }
+
+  // break or continue, the completion it returns is all there is to it
+  static final class Jump extends StmtNode {
+    private final Object completion;
+
+    Jump(Object completion){
+      this.completion = completion;
+    }
+
+    @Override
+    Object execute(Environment env){
+      return completion;
+    }
+  }
+
+  static final class Return extends StmtNode {
+    private final ExprNode value;
+
+    Return(ExprNode value){
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment env){
+      return value == null ? null : value.evaluate(env);
+    }
+  }
+
+  // return f(...): when f is a NodeFunction the call is handed back instead of made here,
+  // so the caller's frame is gone by the time it runs
+  static final class TailReturn extends StmtNode {
+    private final Interpreter interpreter;
+    private final ExprNode callee;
+    private final Token paren;
+    private final ExprNode[] args;
+    private final CallCache cache;
+
+    TailReturn(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] args){
+      this.interpreter = interpreter;
+      this.callee = callee;
+      this.paren = paren;
+      this.args = args;
+      this.cache = new CallCache();
+    }
+
+    @Override
+    Object execute(Environment env){
+      Object function = callee.evaluate(env);
+      Object[] arguments = new Object[args.length];
+      for (int i = 0; i < args.length; i++){
+        arguments[i] = args[i].evaluate(env);
+      }
+
+      LoxCallable callable = cache.lookup(function, paren, arguments.length);
+      if (callable instanceof NodeFunction) return new TailCall((NodeFunction) callable, arguments);
+      interpreter.enterCall(callable, paren);
+      return interpreter.exitCall(callable.call(interpreter, Arrays.asList(arguments)));
+    }
+  }
+}
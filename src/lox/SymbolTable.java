@@ -0,0 +1,71 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Interns names straight from the source bytes. The table is open addressed on a hash of
+// the bytes, so finding a name that was seen before compares it in place and hands back
+// the same String without allocating; only a new name is decoded.
+final class SymbolTable {
+  private byte[][] keys = new byte[256][];
+  private String[] names = new String[256];
+  private int[] hashes = new int[256];
+  private int count = 0;
+
+  String intern(ByteBuffer source, int start, int length){
+    int hash = hash(source, start, length);
+    int mask = keys.length - 1;
+    int index = hash & mask;
+    while (keys[index] != null){
+      if (hashes[index] == hash && matches(keys[index], source, start, length)){
+        return names[index];
+      }
+      index = (index + 1) & mask;
+    }
+
+    byte[] key = new byte[length];
+    source.get(start, key);
+    String name = new String(key, StandardCharsets.UTF_8);
+    keys[index] = key;
+    names[index] = name;
+    hashes[index] = hash;
+    // kept at most half full so probes stay short
+    if (++count * 2 > keys.length) grow();
+    return name;
+  }
+
+  // FNV-1a
+  private static int hash(ByteBuffer source, int start, int length){
+    int hash = 0x811C9DC5;
+    for (int i = start; i < start + length; i++){
+      hash = (hash ^ source.get(i)) * 0x01000193;
+    }
+    return hash;
+  }
+
+  private static boolean matches(byte[] key, ByteBuffer source, int start, int length){
+    if (key.length != length) return false;
+    for (int i = 0; i < key.length; i++){
+      if (key[i] != source.get(start + i)) return false;
+    }
+    return true;
+  }
+
+  private void grow(){
+    byte[][] oldKeys = keys;
+    String[] oldNames = names;
+    int[] oldHashes = hashes;
+    keys = new byte[oldKeys.length * 2][];
+    names = new String[keys.length];
+    hashes = new int[keys.length];
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++){
+      if (oldKeys[i] == null) continue;
+      int index = oldHashes[i] & mask;
+      while (keys[index] != null) index = (index + 1) & mask;
+      keys[index] = oldKeys[i];
+      names[index] = oldNames[i];
+      hashes[index] = oldHashes[i];
+    }
+  }
+}
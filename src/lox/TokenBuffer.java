@@ -0,0 +1,102 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A block of tokens as parallel arrays over the source bytes: each one's type, where its
+// lexeme starts, how long it is and its line. The Scanner fills a block at a time and the
+// Parser reads through it, and only the tokens it asks for become Token objects with a
+// lexeme and literal. Punctuation and keywords it only checks the type of never do.
+final class TokenBuffer {
+  private static final int CAPACITY = 4096;
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private final ByteBuffer source;
+  private final byte[] types = new byte[CAPACITY];
+  private final int[] starts = new int[CAPACITY];
+  private final int[] lengths = new int[CAPACITY];
+  private final int[] lines = new int[CAPACITY];
+  // the Token made for each entry of this block, null until the Parser asks for it
+  private final Token[] made = new Token[CAPACITY];
+  private int size = 0;
+  // one String per distinct name, so every use of it in the AST shares it
+  private final SymbolTable names = new SymbolTable();
+  // the lexeme of each type that is always spelled the same, punctuation and keywords
+  private final String[] spellings = new String[TYPES.length];
+
+  TokenBuffer(ByteBuffer source){
+    this.source = source;
+  }
+
+  int size(){
+    return size;
+  }
+
+  boolean isFull(){
+    return size == CAPACITY;
+  }
+
+  void add(TokenType type, int start, int length, int line){
+    types[size] = (byte) type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    made[size] = null;
+    size++;
+  }
+
+  TokenType type(int index){
+    return TYPES[types[index]];
+  }
+
+  Token token(int index){
+    Token token = made[index];
+    if (token == null){
+      TokenType type = type(index);
+      String lexeme;
+      Object literal = null;
+      switch (type){
+        case IDENTIFIER -> lexeme = names.intern(source, starts[index], lengths[index]);
+        case NUMBER -> {
+          lexeme = text(starts[index], lengths[index]);
+          literal = Double.parseDouble(lexeme);
+        }
+        case STRING -> {
+          lexeme = text(starts[index], lengths[index]);
+          literal = lexeme.substring(1, lexeme.length() - 1);
+        }
+        default -> {
+          lexeme = spellings[type.ordinal()];
+          if (lexeme == null){
+            lexeme = text(starts[index], lengths[index]);
+            spellings[type.ordinal()] = lexeme;
+          }
+        }
+      }
+      token = new Token(type, lexeme, literal, lines[index]);
+      made[index] = token;
+    }
+    return token;
+  }
+
+  // Starts the next block with just the last token of this one, the Parser still needs it
+  // as the one before its next.
+  void keepLast(){
+    int last = size - 1;
+    types[0] = types[last];
+    starts[0] = starts[last];
+    lengths[0] = lengths[last];
+    lines[0] = lines[last];
+    made[0] = made[last];
+    for (int i = 1; i < size; i++){
+      made[i] = null;
+    }
+    size = 1;
+  }
+
+  private String text(int start, int length){
+    byte[] bytes = new byte[length];
+    source.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,15 @@
+package lox;
+
+// A captured local. While open it points at a VM stack slot; once the slot goes out of
+// scope the value is copied in and every closure sharing the upvalue sees the same cell.
+class Upvalue {
+  final int slot;
+  Object closed;
+  boolean isClosed = false;
+  Upvalue next;
+
+  Upvalue(int slot, Upvalue next){
+    this.slot = slot;
+    this.next = next;
+  }
+}
@@ -0,0 +1,496 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Runs Compiler output on an operand stack. Values, truthiness, equality and error
+// messages are shared with the Interpreter so both engines behave the same.
+//
+// Numbers never get boxed while they stay on the stack: a slot holding NUMBER keeps its
+// value in the parallel numbers[] array, and is only turned into a Double when it
+// leaves the VM (globals, closed upvalues, natives, print).
+class VM {
+  private static final Object NUMBER = new Object();
+
+  private static class CallFrame {
+    VMClosure closure;
+    int ip;
+    int base;
+  }
+
+  private final Interpreter interpreter;
+  private final Environment globals;
+  private Object[] stack = new Object[256];
+  private double[] numbers = new double[256];
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  private Upvalue openUpvalues = null;
+
+  VM(Interpreter interpreter){
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+  }
+
+  void interpret(CompiledFunction script){
+    VMClosure closure = new VMClosure(script);
+    ensureStack(script.chunk.maxStack);
+    stack[0] = closure;
+    pushFrame(closure, 0);
+
+    try {
+      run();
+    } catch (RuntimeError err){
+      Lox.runtimeError(err);
+    } finally {
+      resetStack();
+    }
+  }
+
+  private void run(){
+    CallFrame frame = frames[frameCount - 1];
+    Chunk chunk = frame.closure.function.chunk;
+    byte[] code = chunk.code;
+    Object[] constants = chunk.constants;
+    Object[] stack = this.stack;
+    double[] numbers = this.numbers;
+    int ip = frame.ip;
+    int base = frame.base;
+    int sp = base + frame.closure.function.arity + 1;
+
+    for (;;) {
+      switch (code[ip++]) {
+        case OpCode.CONSTANT -> {
+          store(stack, numbers, sp++, constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+          ip += 2;
+        }
+        case OpCode.NIL -> stack[sp++] = null;
+        case OpCode.TRUE -> stack[sp++] = Boolean.TRUE;
+        case OpCode.FALSE -> stack[sp++] = Boolean.FALSE;
+        case OpCode.POP -> sp--;
+        case OpCode.GET_LOCAL -> {
+          int slot = base + (code[ip++] & 0xff);
+          tag(stack, sp, stack[slot]);
+          numbers[sp] = numbers[slot];
+          sp++;
+        }
+        case OpCode.SET_LOCAL -> {
+          int slot = base + (code[ip++] & 0xff);
+          tag(stack, slot, stack[sp - 1]);
+          numbers[slot] = numbers[sp - 1];
+        }
+        case OpCode.SET_LOCAL_POP -> {
+          int slot = base + (code[ip++] & 0xff);
+          sp--;
+          tag(stack, slot, stack[sp]);
+          numbers[slot] = numbers[sp];
+        }
+        case OpCode.GET_GLOBAL -> {
+          Environment.Global global = global(chunk, ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff), ip);
+          ip += 2;
+          store(stack, numbers, sp++, global.get(chunk.tokens[ip - 1]));
+        }
+        case OpCode.DEFINE_GLOBAL -> {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          sp--;
+          globals.define(name, value(stack, numbers, sp));
+        }
+        case OpCode.SET_GLOBAL -> {
+          Environment.Global global = global(chunk, ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff), ip);
+          ip += 2;
+          global.value = value(stack, numbers, sp - 1);
+        }
+        case OpCode.GET_UPVALUE -> {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.isClosed) {
+            store(stack, numbers, sp, upvalue.closed);
+          } else {
+            stack[sp] = stack[upvalue.slot];
+            numbers[sp] = numbers[upvalue.slot];
+          }
+          sp++;
+        }
+        case OpCode.SET_UPVALUE -> {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.isClosed) {
+            upvalue.closed = value(stack, numbers, sp - 1);
+          } else {
+            stack[upvalue.slot] = stack[sp - 1];
+            numbers[upvalue.slot] = numbers[sp - 1];
+          }
+        }
+        case OpCode.EQUAL, OpCode.NOT_EQUAL -> {
+          sp--;
+          boolean equal;
+          if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+            // Double.equals semantics, which is what Interpreter.isEqual ends up using
+            equal = Double.doubleToLongBits(numbers[sp - 1]) == Double.doubleToLongBits(numbers[sp]);
+          } else {
+            Object a = value(stack, numbers, sp - 1);
+            Object b = value(stack, numbers, sp);
+            Interpreter.checkNumberOperands(chunk.tokens[ip - 1], a, b);
+            equal = Interpreter.isEqual(a, b);
+          }
+          stack[sp - 1] = (code[ip - 1] == OpCode.EQUAL) == equal ? Boolean.TRUE : Boolean.FALSE;
+        }
+        case OpCode.GREATER -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          stack[sp - 1] = numbers[sp - 1] > numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+        }
+        case OpCode.GREATER_EQUAL -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          stack[sp - 1] = numbers[sp - 1] >= numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+        }
+        case OpCode.LESS -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          stack[sp - 1] = numbers[sp - 1] < numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+        }
+        case OpCode.LESS_EQUAL -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          stack[sp - 1] = numbers[sp - 1] <= numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+        }
+        case OpCode.ADD -> {
+          sp--;
+          if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+            numbers[sp - 1] += numbers[sp];
+          } else {
+            Object result = Interpreter.add(chunk.tokens[ip - 1],
+              value(stack, numbers, sp - 1), value(stack, numbers, sp));
+            store(stack, numbers, sp - 1, result);
+          }
+        }
+        case OpCode.SUBTRACT -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          numbers[sp - 1] -= numbers[sp];
+        }
+        case OpCode.MULTIPLY -> {
+          sp--;
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          numbers[sp - 1] *= numbers[sp];
+        }
+        case OpCode.DIVIDE -> {
+          sp--;
+          // zero divisors go through the check too: the Interpreter rejects them
+          if (stack[sp - 1] != NUMBER || stack[sp] != NUMBER || numbers[sp] == 0.0) {
+            checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp);
+          }
+          numbers[sp - 1] /= numbers[sp];
+        }
+        case OpCode.NOT -> stack[sp - 1] = Interpreter.isTruthy(stack[sp - 1]) ? Boolean.FALSE : Boolean.TRUE;
+        case OpCode.NEGATE -> {
+          if (stack[sp - 1] != NUMBER) Interpreter.checkNumberOperand(chunk.tokens[ip - 1], stack[sp - 1]);
+          numbers[sp - 1] = -numbers[sp - 1];
+        }
+        case OpCode.PRINT -> {
+          sp--;
+          System.out.println(Interpreter.stringify(value(stack, numbers, sp)));
+        }
+        case OpCode.JUMP -> ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+        case OpCode.JUMP_IF_FALSE -> {
+          if (Interpreter.isTruthy(stack[sp - 1])) {
+            ip += 2;
+          } else {
+            ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          }
+        }
+        case OpCode.POP_JUMP_IF_FALSE -> {
+          sp--;
+          if (Interpreter.isTruthy(stack[sp])) {
+            ip += 2;
+          } else {
+            ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          }
+        }
+        case OpCode.JUMP_IF_NOT_GREATER -> {
+          sp -= 2;
+          if (stack[sp] != NUMBER || stack[sp + 1] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp + 1);
+          ip += numbers[sp] > numbers[sp + 1] ? 2 : (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+        }
+        case OpCode.JUMP_IF_NOT_GREATER_EQUAL -> {
+          sp -= 2;
+          if (stack[sp] != NUMBER || stack[sp + 1] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp + 1);
+          ip += numbers[sp] >= numbers[sp + 1] ? 2 : (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+        }
+        case OpCode.JUMP_IF_NOT_LESS -> {
+          sp -= 2;
+          if (stack[sp] != NUMBER || stack[sp + 1] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp + 1);
+          ip += numbers[sp] < numbers[sp + 1] ? 2 : (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+        }
+        case OpCode.JUMP_IF_NOT_LESS_EQUAL -> {
+          sp -= 2;
+          if (stack[sp] != NUMBER || stack[sp + 1] != NUMBER) checkNumbers(chunk.tokens[ip - 1], stack, numbers, sp + 1);
+          ip += numbers[sp] <= numbers[sp + 1] ? 2 : (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+        }
+        case OpCode.LOOP -> ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+        case OpCode.CALL, OpCode.INVOKE -> {
+          int argCount;
+          VMClosure closure;
+          if (code[ip - 1] == OpCode.CALL) {
+            argCount = code[ip++] & 0xff;
+            closure = closure(sp - argCount - 1, argCount, chunk.tokens[ip - 1]);
+          } else {
+            // a method found on the receiver runs with it where the callee goes, in slot
+            // zero; anything else replaces it there and is called like any other callee
+            PropertyCache cache = chunk.caches[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+            Token name = chunk.tokens[ip - 1];
+            ip += 2;
+            argCount = code[ip++] & 0xff;
+            Object receiver = value(stack, numbers, sp - argCount - 1);
+            LoxMethod method = cache.method(receiver, name);
+            if (method instanceof VMClosure && method.arity() == argCount) {
+              closure = (VMClosure) method;
+            } else {
+              store(stack, numbers, sp - argCount - 1, cache.get(receiver, name));
+              closure = closure(sp - argCount - 1, argCount, chunk.tokens[ip - 1]);
+            }
+          }
+
+          if (closure != null) {
+            if (frameCount == Interpreter.maxDepth) {
+              throw new RuntimeError(chunk.tokens[ip - 1], "Stack overflow.");
+            }
+
+            frame.ip = ip;
+            frame = pushFrame(closure, sp - argCount - 1);
+            base = frame.base;
+            ensureStack(base + closure.function.chunk.maxStack);
+            stack = this.stack;
+            numbers = this.numbers;
+            chunk = closure.function.chunk;
+            code = chunk.code;
+            constants = chunk.constants;
+            ip = 0;
+          } else {
+            LoxCallable function = (LoxCallable) stack[sp - argCount - 1];
+            Object result;
+            if (argCount == 0) {
+              result = function.call0(interpreter);
+            } else {
+              List<Object> arguments = new ArrayList<>(argCount);
+              for (int i = sp - argCount; i < sp; i++) {
+                arguments.add(value(stack, numbers, i));
+              }
+              result = function.call(interpreter, arguments);
+            }
+            sp -= argCount + 1;
+            store(stack, numbers, sp++, result);
+          }
+        }
+        case OpCode.CLASS -> {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp++] = new LoxClass(name, new HashMap<>());
+        }
+        case OpCode.METHOD -> {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          sp--;
+          ((LoxClass) stack[sp - 1]).define(name, (VMClosure) stack[sp]);
+        }
+        case OpCode.GET_PROPERTY -> {
+          PropertyCache cache = chunk.caches[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          Token name = chunk.tokens[ip - 1];
+          ip += 2;
+          store(stack, numbers, sp - 1, cache.get(value(stack, numbers, sp - 1), name));
+        }
+        case OpCode.SET_PROPERTY -> {
+          PropertyCache cache = chunk.caches[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          Token name = chunk.tokens[ip - 1];
+          ip += 2;
+          sp--;
+          cache.set(value(stack, numbers, sp - 1), name, value(stack, numbers, sp));
+          // the assigned value is what the expression leaves behind
+          stack[sp - 1] = stack[sp];
+          numbers[sp - 1] = numbers[sp];
+        }
+        case OpCode.CLOSURE -> {
+          CompiledFunction function = (CompiledFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          VMClosure closure = new VMClosure(function);
+          for (int i = 0; i < function.upvalueCount; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+          }
+          stack[sp++] = closure;
+        }
+        case OpCode.CLOSE_UPVALUE -> {
+          closeUpvalues(sp - 1);
+          sp--;
+        }
+        case OpCode.RETURN -> {
+          sp--;
+          Object result = stack[sp];
+          double number = numbers[sp];
+          closeUpvalues(base);
+          frameCount--;
+          if (frameCount == 0) return;
+
+          stack[base] = result;
+          numbers[base] = number;
+          sp = base + 1;
+          frame = frames[frameCount - 1];
+          chunk = frame.closure.function.chunk;
+          code = chunk.code;
+          constants = chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+        }
+        default -> throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+      }
+    }
+  }
+
+  // the cell behind a global's name constant, looked up once and then cached on the chunk
+  private Environment.Global global(Chunk chunk, int constant, int ip){
+    Environment.Global global = chunk.globals[constant];
+    if (global == null){
+      global = globals.global(chunk.tokens[ip + 1]);
+      chunk.globals[constant] = global;
+    }
+    return global;
+  }
+
+  private static Object value(Object[] stack, double[] numbers, int slot){
+    Object value = stack[slot];
+    return value == NUMBER ? (Object) numbers[slot] : value;
+  }
+
+  private static void store(Object[] stack, double[] numbers, int slot, Object value){
+    if (value instanceof Double) {
+      tag(stack, slot, NUMBER);
+      numbers[slot] = (double) value;
+    } else {
+      stack[slot] = value;
+    }
+  }
+
+  // Sets what stack[slot] holds, unless it holds it already. In a loop over numbers the
+  // slots an instruction writes mostly hold NUMBER from the iteration before, and a load
+  // and compare is much cheaper than the GC write barrier every reference store pays.
+  private static void tag(Object[] stack, int slot, Object value){
+    if (stack[slot] != value) stack[slot] = value;
+  }
+
+  // Slow path for the binary number operators. Throws the Interpreter's error, or fails
+  // the same way it does for a pair of strings.
+  private static void checkNumbers(Token operator, Object[] stack, double[] numbers, int top){
+    Object a = value(stack, numbers, top - 1);
+    Object b = value(stack, numbers, top);
+    Interpreter.checkNumberOperands(operator, a, b);
+    stack[top - 1] = NUMBER;
+    numbers[top - 1] = (double) a;
+    numbers[top] = (double) b;
+  }
+
+  // The closure a call to the callee in slot runs, after putting `this` in slot for a
+  // bound method, or a new instance for a class with an initializer. Null for any other
+  // callable, which the caller calls directly.
+  private VMClosure closure(int slot, int argCount, Token paren){
+    Object callee = stack[slot];
+    if (callee instanceof VMClosure) {
+      VMClosure closure = (VMClosure) callee;
+      checkArity(paren, closure.function.arity, argCount);
+      if (closure.receiver != null) stack[slot] = closure.receiver;
+      return closure;
+    }
+    if (callee instanceof LoxClass && ((LoxClass) callee).initializer != null) {
+      LoxClass klass = (LoxClass) callee;
+      VMClosure initializer = (VMClosure) klass.initializer;
+      checkArity(paren, initializer.function.arity, argCount);
+      stack[slot] = new LoxInstance(klass);
+      return initializer;
+    }
+    if (callee instanceof LoxCallable) {
+      checkArity(paren, ((LoxCallable) callee).arity(), argCount);
+      return null;
+    }
+    throw new RuntimeError(paren, "Can only call functions and classes.");
+  }
+
+  private void checkArity(Token paren, int arity, int argCount){
+    if (argCount != arity){
+      throw new RuntimeError(paren, "Expected "
+        + arity + " arguments but got " + argCount + ".");
+    }
+  }
+
+  // the VM's side of Interpreter.callStack: the call site each frame below the innermost
+  // one is stopped at, innermost last
+  List<Token> callStack(){
+    List<Token> sites = new ArrayList<>();
+    for (int i = 0; i < frameCount - 1; i++){
+      CallFrame frame = frames[i];
+      sites.add(frame.closure.function.chunk.tokens[frame.ip - 1]);
+    }
+    return sites;
+  }
+
+  private CallFrame pushFrame(VMClosure closure, int base){
+    if (frameCount == frames.length){
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+    CallFrame frame = frames[frameCount];
+    if (frame == null){
+      frame = new CallFrame();
+      frames[frameCount] = frame;
+    }
+    frameCount++;
+
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+    return frame;
+  }
+
+  private void ensureStack(int size){
+    if (size > stack.length){
+      int capacity = Math.max(size, stack.length * 2);
+      stack = Arrays.copyOf(stack, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+    }
+  }
+
+  private Upvalue captureUpvalue(int slot){
+    Upvalue prev = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot){
+      prev = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    Upvalue created = new Upvalue(slot, upvalue);
+    if (prev == null){
+      openUpvalues = created;
+    } else {
+      prev.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last){
+    while (openUpvalues != null && openUpvalues.slot >= last){
+      Upvalue upvalue = openUpvalues;
+      upvalue.closed = value(stack, numbers, upvalue.slot);
+      upvalue.isClosed = true;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void resetStack(){
+    Arrays.fill(stack, null);
+    for (int i = 0; i < frameCount; i++){
+      frames[i].closure = null;
+    }
+    frameCount = 0;
+    openUpvalues = null;
+  }
+}
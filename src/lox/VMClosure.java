@@ -0,0 +1,35 @@
+package lox;
+
+class VMClosure implements LoxMethod {
+  final CompiledFunction function;
+  final Upvalue[] upvalues;
+  // `this` for a method that was bound to an instance, null otherwise
+  final LoxInstance receiver;
+
+  VMClosure(CompiledFunction function){
+    this.function = function;
+    this.upvalues = new Upvalue[function.upvalueCount];
+    this.receiver = null;
+  }
+
+  private VMClosure(VMClosure method, LoxInstance receiver){
+    this.function = method.function;
+    this.upvalues = method.upvalues;
+    this.receiver = receiver;
+  }
+
+  @Override
+  public int arity(){
+    return function.arity;
+  }
+
+  @Override
+  public VMClosure bind(LoxInstance receiver){
+    return new VMClosure(this, receiver);
+  }
+
+  @Override
+  public String toString(){
+    return function.toString();
+  }
+}
@@ -14,27 +14,35 @@ public class GenerateAst {
 
     String outputDir = args[0];
     defineAst(outputDir, "Expr", Arrays.asList(
-      "Assign : Token name, Expr value",
+      "Assign : Token name, Expr value | int depth = Resolver.GLOBAL, int slot = Resolver.GLOBAL, int upvalue = Resolver.GLOBAL, boolean captured, Environment.Global global",
       "Binary: Expr left, Token operator, Expr right",
-      "Call : Expr callee, Token paren, List<Expr> args",
+      // cache is the call's inline cache of callees, filled in as the engine runs it
+      "Call : Expr callee, Token paren, List<Expr> args | CallCache cache = new CallCache()",
+      // cache is the site's inline cache, filled in as the engine runs it
+      "Get : Expr object, Token name | PropertyCache cache = new PropertyCache()",
       "Grouping: Expr expression",
       "Literal: Object value",
       "Logical : Expr left, Token operator, Expr right",
+      "Set : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
       "Unary: Token operator, Expr right",
-      "Variable : Token name"
+      "Variable : Token name | int depth = Resolver.GLOBAL, int slot = Resolver.GLOBAL, int upvalue = Resolver.GLOBAL, boolean captured, Environment.Global global"
     ));
 
     defineAst(outputDir, "Stmt", Arrays.asList(
-      "Block : List<Stmt> statements",
-      "Class : Token name, List<Stmt.Function> methods",
+      "Block : List<Stmt> statements | int localCount, boolean flat",
+      "Break : Token keyword",
+      "Class : Token name, List<Stmt.Function> methods | int slot = Resolver.GLOBAL, boolean captured",
+      "Continue : Token keyword",
       "Expression : Expr expression",
-      "Function : Token name, List<Token> params, List<Stmt> body",
+      // receiver is the slot a method keeps `this` in, the one after its parameters
+      "Function : Token name, List<Token> params, List<Stmt> body | int slot = Resolver.GLOBAL, int localCount, boolean assigned, boolean captured, int[] captures, int[] capturedParams, int receiver = Resolver.GLOBAL, boolean initializer",
       "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
-//      "Break : Token name, Stmt skipToStmt",
       "Print : Expr expression",
-      "Return : Token keyword, Expr value",
-      "Var : Token name, Expr initializer",
-      "While : Expr condition, Stmt body"
+      "Return : Token keyword, Expr value | boolean tailCall",
+      "Var : Token name, Expr initializer | int slot = Resolver.GLOBAL, boolean assigned, boolean captured",
+      // increment is a for loop's, run after the body and after a continue. counter is the
+      // slot of a for loop's variable when the loop only counts it by a constant step
+      "While : Expr condition, Stmt body, Expr increment | int counter = Resolver.GLOBAL, double step"
     ));
   }
 
@@ -55,15 +63,17 @@ public class GenerateAst {
     writer.println(" abstract <R> R acceptRPN(VisitorRPN<R> visitor);");
     for (String type: types) {
       String className = type.split(":")[0].trim();
-      String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      // anything after '|' is filled in by the Resolver rather than the Parser
+      String[] fields = type.split(":")[1].split("\\|");
+      String resolvedFields = fields.length > 1 ? fields[1].trim() : null;
+      defineType(writer, baseName, className, fields[0].trim(), resolvedFields);
     }
 
     writer.println("}");
     writer.close();
   }
 
-  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String resolvedFieldList) {
     writer.println(" static class " + className + " extends " + baseName + " {");
 
     // define and populate params
@@ -71,6 +81,11 @@ public class GenerateAst {
     for (String field : fields) {
       writer.println(" final " + field + ";");
     }
+    if (resolvedFieldList != null) {
+      for (String field : resolvedFieldList.split(", ")) {
+        writer.println(" " + field + ";");
+      }
+    }
 
     writer.println(" " + className + "(" + fieldList + ") {");
     for (String field : fields) {